@@ -0,0 +1,87 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encrypting a password, inline and through the server's hashing pool, and of checking one on login.
+ * deriveJca is the same derivation through SecretKeyFactory, as a baseline for the PBKDF2 engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordBenchmark {
+    private static final Class<?> HASHER = Targets.type("PasswordHasher");
+    private static final Class<?> PARAMS = Targets.type("HashParams");
+    private static final MethodHandle DERIVE = Targets.method(HASHER, "derive", String.class, byte[].class);
+    private static final MethodHandle GENERATE_SALT = Targets.method(HASHER, "generateSalt");
+    private static final MethodHandle GET_ENCRYPTED_PSWD = Targets.method(Targets.StartedServer.SERVER,
+            "getEncryptedPswd", String.class, byte[].class, PARAMS);
+    private static final MethodHandle AUTHENTICATE_PSWD = Targets.method(Targets.StartedServer.SERVER,
+            "authenticatePswd", String.class, byte[].class, byte[].class, PARAMS);
+
+    private Targets.StartedServer started;
+    private byte[] salt;
+    private byte[] encrypted;
+    private Object params;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        started = new Targets.StartedServer();
+        salt = (byte[]) GENERATE_SALT.invoke();
+        encrypted = (byte[]) DERIVE.invoke("correct horse battery staple", salt);
+        params = PARAMS.getField("LEGACY").get(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        started.stop();
+    }
+
+    @Benchmark
+    public byte[] deriveInline() throws Throwable {
+        return (byte[]) DERIVE.invoke("correct horse battery staple", salt);
+    }
+
+    @Benchmark
+    public byte[] deriveJca() throws Exception {
+        return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1")
+                .generateSecret(new PBEKeySpec("correct horse battery staple".toCharArray(), salt, 10000, 160))
+                .getEncoded();
+    }
+
+    @Benchmark
+    public byte[] getEncryptedPswd() throws Throwable {
+        return (byte[]) GET_ENCRYPTED_PSWD.invoke(started.server, "correct horse battery staple", salt, params);
+    }
+
+    @Benchmark
+    public boolean authenticatePswd() throws Throwable {
+        return (boolean) AUTHENTICATE_PSWD.invoke(started.server, "correct horse battery staple", encrypted, salt,
+                params);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] generateSalt() throws Throwable {
+        return (byte[]) GENERATE_SALT.invoke();
+    }
+}
@@ -0,0 +1,98 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * print, topQueue and queue listing through the Server methods, at several queue depths. print dequeues the job it
+ * adds again so the depth stays constant.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrintQueueBenchmark {
+    private static final Class<?> SERVER = Targets.StartedServer.SERVER;
+    private static final MethodHandle PRINT = Targets.method(SERVER, "print", String.class, String.class,
+            String.class);
+    private static final MethodHandle TOP_QUEUE = Targets.method(SERVER, "topQueue", int.class, String.class);
+    private static final MethodHandle QUEUE_PAGE = Targets.method(SERVER, "queue", String.class, int.class,
+            String.class);
+    private static final MethodHandle CONSTRUCT_LIST = Targets.method(SERVER, "constructListOfFiles", String.class);
+    private static final MethodHandle DEQUEUE = Targets.method(Targets.type("PrintQueue"), "dequeue");
+    private static final MethodHandle REMOVE = Targets.method(Targets.type("PrintQueue"), "remove", long.class);
+    private static final MethodHandle ENQUEUE = Targets.method(Targets.type("PrintQueue"), "enqueue", String.class,
+            String.class, String.class, int.class);
+    private static final MethodHandle JOB_ID = Targets.method(Targets.type("PrintJob"), "getId");
+
+    @Param({"10", "1000", "100000"})
+    public int depth;
+
+    private Targets.StartedServer started;
+    private Object printQueue;
+    private int firstJobId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        started = new Targets.StartedServer();
+        printQueue = Targets.field(started.server, "printQueue");
+        for (int i = 0; i < depth; i++) {
+            Object job = ENQUEUE.invoke(printQueue, "file-" + i + ".pdf", "bench", "printer-1", 0);
+            if (i == 0) {
+                firstJobId = (int) (long) JOB_ID.invoke(job);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        started.stop();
+    }
+
+    @Benchmark
+    public Object print() throws Throwable {
+        String result = (String) PRINT.invoke(started.server, "report.pdf", "printer-1", started.sessionKey);
+        // the newly printed job is the last one; take it off again to keep the depth constant
+        long id = Long.parseLong(result.substring(result.lastIndexOf(' ') + 1, result.length() - 1));
+        return REMOVE.invoke(printQueue, id);
+    }
+
+    @Benchmark
+    public String topQueue() throws Throwable {
+        int jobId = firstJobId + ThreadLocalRandom.current().nextInt(depth);
+        return (String) TOP_QUEUE.invoke(started.server, jobId, started.sessionKey);
+    }
+
+    @Benchmark
+    public Object queueFirstPage() throws Throwable {
+        return QUEUE_PAGE.invoke(started.server, (String) null, 20, started.sessionKey);
+    }
+
+    @Benchmark
+    public String constructListOfFiles() throws Throwable {
+        return (String) CONSTRUCT_LIST.invoke(started.server, "List of files on the queue:");
+    }
+
+    @Benchmark
+    public Object enqueueDequeue() throws Throwable {
+        ENQUEUE.invoke(printQueue, "report.pdf", "bench", "printer-1", 0);
+        return DEQUEUE.invoke(printQueue);
+    }
+}
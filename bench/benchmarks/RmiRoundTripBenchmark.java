@@ -0,0 +1,110 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.net.ServerSocket;
+import java.rmi.Remote;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full RMI round trips against a server exported to an in-process registry on the loopback interface, so the cost
+ * of serialization and the transport shows up next to the cost of the server methods themselves. The server is
+ * exported over default RMI sockets, over TunedSocketFactory sockets, or over those with compression.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RmiRoundTripBenchmark {
+    private static final Class<?> REMOTE = Targets.type("RemoteInterface");
+    private static final MethodHandle STATUS = Targets.method(REMOTE, "status");
+    private static final MethodHandle READ_CONFIG = Targets.method(REMOTE, "readConfig", String.class, String.class);
+    private static final MethodHandle SET_CONFIG = Targets.method(REMOTE, "setConfig", String.class, String.class,
+            String.class);
+    private static final MethodHandle QUEUE_PAGE = Targets.method(REMOTE, "queue", String.class, int.class,
+            String.class);
+    private static final MethodHandle TOP_QUEUE = Targets.method(REMOTE, "topQueue", int.class, String.class);
+    private static final MethodHandle PRINT = Targets.method(REMOTE, "print", String.class, String.class,
+            String.class);
+    private static final MethodHandle NEW_SOCKET_FACTORY = Targets.constructor(Targets.type("TunedSocketFactory"),
+            boolean.class, boolean.class, int.class, boolean.class, boolean.class);
+
+    @Param({"default", "tuned", "compressed"})
+    public String sockets;
+
+    private Targets.StartedServer started;
+    private Registry registry;
+    private Object stub;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        started = new Targets.StartedServer();
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        registry = LocateRegistry.createRegistry(port);
+        Remote exported;
+        if ("default".equals(sockets)) {
+            exported = UnicastRemoteObject.exportObject((Remote) started.server, 0);
+        } else {
+            Object factory = NEW_SOCKET_FACTORY.invoke(true, true, 256 * 1024, "compressed".equals(sockets), false);
+            exported = UnicastRemoteObject.exportObject((Remote) started.server, 0, (RMIClientSocketFactory) factory,
+                    (RMIServerSocketFactory) factory);
+        }
+        registry.rebind("RemoteInterface", exported);
+        stub = LocateRegistry.getRegistry("localhost", port).lookup("RemoteInterface");
+
+        SET_CONFIG.invoke(stub, "paper", "A4", started.sessionKey);
+        for (int i = 0; i < 100; i++) {
+            PRINT.invoke(stub, "file-" + i + ".pdf", "printer-1", started.sessionKey);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        UnicastRemoteObject.unexportObject((Remote) started.server, true);
+        UnicastRemoteObject.unexportObject(registry, true);
+        started.stop();
+    }
+
+    @Benchmark
+    public String status() throws Throwable {
+        return (String) STATUS.invoke(stub);
+    }
+
+    @Benchmark
+    public String readConfig() throws Throwable {
+        return (String) READ_CONFIG.invoke(stub, "paper", started.sessionKey);
+    }
+
+    @Benchmark
+    public String topQueue() throws Throwable {
+        return (String) TOP_QUEUE.invoke(stub, 50, started.sessionKey);
+    }
+
+    @Benchmark
+    public Object queueFirstPage() throws Throwable {
+        return QUEUE_PAGE.invoke(stub, (String) null, 20, started.sessionKey);
+    }
+}
@@ -0,0 +1,91 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session verification, the check run on every authenticated call, against the number of live sessions. The
+ * legacy benchmark reproduces the old HashMap.containsValue scan for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBenchmark {
+    private static final Class<?> STORE = Targets.type("SessionStore");
+    private static final Class<?> TOKENS = Targets.type("TokenSessionManager");
+    private static final MethodHandle NEW_STORE = Targets.constructor(STORE);
+    private static final MethodHandle NEW_TOKENS = Targets.constructor(TOKENS, File.class, long.class, int.class,
+            long.class, long.class);
+    private static final MethodHandle CREATE = Targets.method(Targets.type("SessionManager"), "create", String.class);
+    private static final MethodHandle TOUCH = Targets.method(Targets.type("SessionManager"), "touch", String.class);
+    private static final MethodHandle SHUTDOWN = Targets.method(Targets.type("SessionManager"), "shutdown");
+
+    @Param({"10", "1000", "100000"})
+    public int sessions;
+
+    private Object store;
+    private Object tokens;
+    private String[] keys;
+    private String[] tokenKeys;
+    private HashMap<String, String> legacy;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        store = NEW_STORE.invoke();
+        tokens = NEW_TOKENS.invoke((File) null, TimeUnit.HOURS.toMillis(1), 3, 0L, 0L);
+        keys = new String[sessions];
+        tokenKeys = new String[sessions];
+        legacy = new HashMap<>();
+        for (int i = 0; i < sessions; i++) {
+            keys[i] = (String) CREATE.invoke(store, "user" + i);
+            tokenKeys[i] = (String) CREATE.invoke(tokens, "user" + i);
+            legacy.put("user" + i, keys[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        SHUTDOWN.invoke(store);
+        SHUTDOWN.invoke(tokens);
+    }
+
+    @Benchmark
+    public boolean storeHit() throws Throwable {
+        return (boolean) TOUCH.invoke(store, keys[ThreadLocalRandom.current().nextInt(sessions)]);
+    }
+
+    @Benchmark
+    public boolean storeMiss() throws Throwable {
+        return (boolean) TOUCH.invoke(store, "not-a-session-key");
+    }
+
+    @Benchmark
+    public boolean tokenHit() throws Throwable {
+        return (boolean) TOUCH.invoke(tokens, tokenKeys[ThreadLocalRandom.current().nextInt(sessions)]);
+    }
+
+    @Benchmark
+    public boolean legacyContainsValue() {
+        return legacy.containsValue(keys[ThreadLocalRandom.current().nextInt(sessions)]);
+    }
+}
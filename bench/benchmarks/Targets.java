@@ -0,0 +1,102 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Reflective access to the server classes. They live in the default package, which JMH benchmarks cannot import
+ * from, so every benchmark reaches them through method handles obtained here.
+ */
+final class Targets {
+
+    private Targets() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Server class " + name + " is not on the classpath", e);
+        }
+    }
+
+    static MethodHandle method(Class<?> owner, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = owner.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No method " + owner.getName() + "." + name, e);
+        }
+    }
+
+    static MethodHandle constructor(Class<?> owner, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = owner.getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No constructor for " + owner.getName(), e);
+        }
+    }
+
+    static Object field(Object target, String name) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No field " + target.getClass().getName() + "." + name, e);
+        }
+    }
+
+    /**
+     * A started Server with a throwaway embedded user store, so benchmarks need no database.
+     */
+    static final class StartedServer {
+        static final Class<?> SERVER = type("Server");
+        private static final MethodHandle NEW_SERVER = constructor(SERVER);
+        private static final MethodHandle START = method(SERVER, "start");
+        private static final MethodHandle STOP = method(SERVER, "stop", String.class);
+        private static final MethodHandle REGISTER = method(SERVER, "register", String.class, String.class);
+
+        final Object server;
+        final String sessionKey;
+        private final Path dir;
+
+        StartedServer() throws Throwable {
+            dir = Files.createTempDirectory("rmi-auth-bench");
+            System.setProperty("auth.userstore", "file");
+            System.setProperty("auth.userstore.file", dir.resolve("users.db").toString());
+            System.setProperty("auth.audit.dir", dir.resolve("audit").toString());
+            System.setProperty("auth.config.file", dir.resolve("config.db").toString());
+            System.setProperty("auth.queue.dir", dir.resolve("queue").toString());
+            System.setProperty("auth.printers", "printer-1");
+            // fixed instead of calibrated, so results stay comparable across machines and runs
+            System.setProperty("auth.hash.iterations", "10000");
+            server = NEW_SERVER.invoke();
+            START.invoke(server);
+            sessionKey = (String) REGISTER.invoke(server, "bench", "bench-password");
+            if (sessionKey == null) {
+                throw new IllegalStateException("Could not register the benchmark user");
+            }
+        }
+
+        void stop() throws Throwable {
+            STOP.invoke(server, sessionKey);
+            // the audit log may have rolled over into several files, so the whole tree is deleted
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
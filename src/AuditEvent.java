@@ -0,0 +1,107 @@
+import java.time.Instant;
+
+/**
+ * One entry of the audit log: who did what from where, and how it ended. Events are created on the request thread
+ * and only formatted by the audit writer.
+ */
+public final class AuditEvent {
+
+    public enum Type {
+        REGISTER, LOGIN, PRINT, TOP_QUEUE, SET_CONFIG, LIFECYCLE
+    }
+
+    private final long timeMillis;
+    private final Type type;
+    private final String outcome;
+    private final String username;
+    private final String host;
+    private final String detail;
+
+    /**
+     * @param timeMillis long When the event happened
+     * @param type Type
+     * @param outcome String Short, fixed word such as "ok", "unknownUser" or "error"
+     * @param username String The user the event is about, or null
+     * @param host String The client host, or "local" outside of a remote call
+     * @param detail String Free text such as a file name or an exception, or null
+     */
+    public AuditEvent(long timeMillis, Type type, String outcome, String username, String host, String detail) {
+        this.timeMillis = timeMillis;
+        this.type = type;
+        this.outcome = outcome;
+        this.username = username;
+        this.host = host;
+        this.detail = detail;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    /**
+     * Appends the event as one tab-separated line: time, type, outcome, username, host and detail. Tabs, line breaks
+     * and backslashes in the fields are escaped, so every event stays on its own line whatever a client sent.
+     * @param out StringBuilder
+     */
+    public void appendLine(StringBuilder out) {
+        out.append(Instant.ofEpochMilli(timeMillis)).append('\t').append(type).append('\t').append(outcome);
+        appendField(out, username);
+        appendField(out, host);
+        appendField(out, detail);
+        out.append('\n');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(64);
+        appendLine(out);
+        return out.substring(0, out.length() - 1);
+    }
+
+    private static void appendField(StringBuilder out, String value) {
+        out.append('\t');
+        if (value == null) {
+            out.append('-');
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous audit log. Request threads hand events to a bounded, lock-free ring buffer and return right away; a
+ * single writer thread drains it and passes the events to an AuditSink in batches of up to batchSize. The writer
+ * sleeps while little is pending and wakes up every flushMillis or as soon as a full batch is waiting, so a burst of
+ * events costs a few large writes instead of one small write each, and logging never contends on a lock or waits
+ * for I/O on the request path.
+ *
+ * The ring is a multi-producer array queue in which every slot carries a sequence number telling producers and the
+ * writer whose turn the slot is: a producer claims a position with one CAS and publishes its event with an ordered
+ * store of the slot's sequence.
+ *
+ * When the ring is full, events are dropped and counted ("drop", the default), or the producer waits up to
+ * blockMillis for the writer to make room before dropping ("block"). Dropping is the safe choice under attack: a
+ * flood of failed logins then costs audit entries, not request threads. Events still in the ring when the JVM exits
+ * are written by a shutdown hook.
+ *
+ * close() waits for producers that got past the closed check to finish their offer, so no accepted event arrives
+ * after it, then writes what the writer left in the ring itself. When the sink fails, a LIFECYCLE event saying
+ * when, why and how many events were lost is written ahead of the first batch the sink accepts again, so the gap
+ * shows in the log.
+ */
+public class AuditLog implements AutoCloseable {
+    private final AuditSink sink;
+    private final int batchSize;
+    private final long flushNanos;
+    private final boolean block;
+    private final long blockNanos;
+
+    private final int mask;
+    private final AtomicReferenceArray<AuditEvent> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    // producers between their closed check and the end of their offer
+    private final AtomicInteger offering = new AtomicInteger();
+    private final Thread writer;
+    private final Thread drainOnExit = new Thread(this::close, "audit-drain");
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+    // only used by the writer, then by close() once the writer has exited
+    private long head;
+    private Exception failure;
+    private long failedAtMillis;
+    private long lostBeforeFailure;
+
+    private final LongAdder dropped = new LongAdder();
+    // only updated by the writer
+    private volatile long written;
+    private volatile long lost;
+    private volatile long batches;
+    private volatile long maxBatch;
+    private volatile long writeNanosTotal;
+
+    /**
+     * @param sink AuditSink Where the events are written
+     * @param capacity int Number of events the ring holds, rounded up to a power of two
+     * @param batchSize int Maximum number of events per write to the sink
+     * @param flushMillis long Longest time an event waits in the ring while the writer is idle
+     * @param block boolean Whether producers wait for room in a full ring instead of dropping their event
+     * @param blockMillis long How long a producer waits for room before dropping its event anyway
+     */
+    public AuditLog(AuditSink sink, int capacity, int batchSize, long flushMillis, boolean block, long blockMillis) {
+        if (capacity < 2 || batchSize < 1) {
+            throw new IllegalArgumentException("Invalid audit log size: capacity=" + capacity + ", batch=" + batchSize);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.sink = sink;
+        this.batchSize = Math.min(batchSize, size);
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushMillis));
+        this.block = block;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+
+        writer = new Thread(this::writeLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(drainOnExit);
+    }
+
+    /**
+     * Hands an event to the writer without waiting for it to be written
+     * @param event AuditEvent
+     * @return True/False False if the event was dropped because the ring was full or the log is closed
+     */
+    public boolean log(AuditEvent event) {
+        long position;
+        offering.incrementAndGet();
+        try {
+            if (closed) {
+                dropped.increment();
+                return false;
+            }
+            position = offer(event);
+            if (position < 0 && block) {
+                long deadline = System.nanoTime() + blockNanos;
+                while (position < 0 && !closed && System.nanoTime() - deadline < 0) {
+                    LockSupport.unpark(writer);
+                    LockSupport.parkNanos(50000);
+                    position = offer(event);
+                }
+            }
+        } finally {
+            offering.decrementAndGet();
+        }
+        if (position < 0) {
+            dropped.increment();
+            return false;
+        }
+        if (writerParked && position + 1 - consumed.get() >= batchSize) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * @return long Number of events waiting in the ring
+     */
+    public long getPending() {
+        return Math.max(0, tail.get() - consumed.get());
+    }
+
+    /**
+     * @return long Number of events accepted into the ring
+     */
+    public long getAccepted() {
+        return tail.get();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return long Number of accepted events in batches the sink failed to write
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public double getAverageBatch() {
+        long n = batches;
+        return n == 0 ? 0 : (double) (written + lost) / n;
+    }
+
+    /**
+     * @return String One-line summary of the log's counters
+     */
+    public String stats() {
+        long n = batches;
+        return String.format("auditLog[sink=%s, policy=%s, capacity=%d, pending=%d, accepted=%d, dropped=%d, "
+                        + "written=%d, lost=%d, batches=%d, avgBatch=%.1f, maxBatch=%d, avgWriteMillis=%.3f]", sink,
+                block ? "block" : "drop", mask + 1, getPending(), getAccepted(), getDropped(), written, lost, n,
+                getAverageBatch(), maxBatch, n == 0 ? 0 : writeNanosTotal / (n * 1e6));
+    }
+
+    /**
+     * Writes every event still in the ring, then closes the sink. Events logged afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(drainOnExit);
+        } catch (IllegalStateException e) {
+            // closing from the hook itself, or while the JVM exits
+        }
+        // a producer that saw the log open finishes its offer quickly, since a blocked one gives up once closed
+        while (offering.get() != 0) {
+            Thread.yield();
+        }
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // nothing is offered any more, so whatever the writer left behind is the rest of the log
+        List<AuditEvent> batch = new ArrayList<>(batchSize);
+        while (take(batch)) {
+            write(batch);
+        }
+        if (failure != null) {
+            // one last try to record the gap
+            write(batch);
+        }
+        sink.close();
+    }
+
+    /**
+     * @return long The position the event was stored at, or -1 if the ring is full
+     */
+    private long offer(AuditEvent event) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, event);
+                    sequences.lazySet(index, position + 1);
+                    return position;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                // the slot still holds the event from one lap ago
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<AuditEvent> batch = new ArrayList<>(batchSize);
+        while (!closed) {
+            if (take(batch)) {
+                write(batch);
+                continue;
+            }
+            writerParked = true;
+            if (tail.get() - head < batchSize && !closed) {
+                LockSupport.parkNanos(this, flushNanos);
+            }
+            writerParked = false;
+        }
+    }
+
+    /**
+     * Moves up to batchSize published events from the ring into the batch
+     * @param batch List<AuditEvent> Empty
+     * @return True/False False if no event was waiting
+     */
+    private boolean take(List<AuditEvent> batch) {
+        while (batch.size() < batchSize) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            batch.add(slots.get(index));
+            slots.lazySet(index, null);
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+        }
+        consumed.lazySet(head);
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Passes a batch to the sink, preceded by the record of an earlier failure if there is one, and empties it
+     * @param batch List<AuditEvent>
+     */
+    private void write(List<AuditEvent> batch) {
+        long start = System.nanoTime();
+        boolean withFailure = failure != null;
+        if (withFailure) {
+            batch.add(0, new AuditEvent(failedAtMillis, AuditEvent.Type.LIFECYCLE, "error", null, "local",
+                    "audit log write failed, " + (lost - lostBeforeFailure) + " events lost: " + failure));
+        }
+        try {
+            sink.write(batch);
+            written += batch.size() - (withFailure ? 1 : 0);
+            failure = null;
+        } catch (IOException | RuntimeException e) {
+            if (withFailure) {
+                batch.remove(0);
+            } else {
+                failure = e;
+                failedAtMillis = System.currentTimeMillis();
+                lostBeforeFailure = lost;
+            }
+            lost += batch.size();
+        }
+        writeNanosTotal += System.nanoTime() - start;
+        batches++;
+        maxBatch = Math.max(maxBatch, batch.size());
+        batch.clear();
+    }
+
+    /**
+     * AuditSink printing every event to standard output, as the server used to do synchronously
+     */
+    static final class ConsoleSink implements AuditSink {
+        private final StringBuilder lines = new StringBuilder(8192);
+
+        @Override
+        public void write(List<AuditEvent> events) {
+            lines.setLength(0);
+            for (AuditEvent event : events) {
+                event.appendLine(lines);
+            }
+            System.out.print(lines);
+            System.out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return "console";
+        }
+    }
+}
@@ -0,0 +1,22 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the audit log. Only the audit writer thread calls a sink, so implementations need not be thread
+ * safe.
+ */
+public interface AuditSink {
+
+    /**
+     * Stores a batch of events, in order. Batches are as large as the events that piled up since the previous one,
+     * so a sink should write each batch in as few I/O operations as it can.
+     * @param events List<AuditEvent>
+     * @throws IOException if the batch could not be stored, in which case it is counted as lost
+     */
+    void write(List<AuditEvent> events) throws IOException;
+
+    /**
+     * Releases every resource held by the sink
+     */
+    void close();
+}
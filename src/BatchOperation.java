@@ -0,0 +1,48 @@
+import java.io.Serializable;
+
+/**
+ * One print server operation to run as part of a batch() call.
+ */
+public class BatchOperation implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        PRINT, TOP_QUEUE, READ_CONFIG, SET_CONFIG
+    }
+
+    private final Type type;
+    private final String[] args;
+
+    private BatchOperation(Type type, String... args) {
+        this.type = type;
+        this.args = args;
+    }
+
+    public static BatchOperation print(String filename, String printer) {
+        return new BatchOperation(Type.PRINT, filename, printer);
+    }
+
+    public static BatchOperation topQueue(int jobID) {
+        return new BatchOperation(Type.TOP_QUEUE, Integer.toString(jobID));
+    }
+
+    public static BatchOperation readConfig(String parameter) {
+        return new BatchOperation(Type.READ_CONFIG, parameter);
+    }
+
+    public static BatchOperation setConfig(String parameter, String value) {
+        return new BatchOperation(Type.SET_CONFIG, parameter, value);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @param index int
+     * @return String The index-th argument of the operation
+     */
+    public String arg(int index) {
+        return args[index];
+    }
+}
@@ -0,0 +1,238 @@
+import java.io.BufferedReader;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+/**
+ * Registers users in bulk. Input is consumed in fixed-size chunks so it never has to fit in memory: the passwords of
+ * a chunk are encrypted on the server's HashingExecutor, a few at a time so logins keep a share of the hashing
+ * threads, then the chunk is written with a single batch insert and a result line is emitted for every user.
+ *
+ * The user store is only used while holding the store lock, and not at all once the registrar is shut down; the
+ * passwords are encrypted without holding it, so a long batch does not keep the server from stopping.
+ */
+public class BatchRegistrar {
+    private static final String STOPPED = "failed (the print server was stopped)";
+
+    private final UserStore userStore;
+    private final UsernameFilter usernameFilter;
+    private final int chunkSize;
+    private final HashingExecutor hashingExecutor;
+    private final int inFlight;
+    private final HashParams hashParams;
+    private final Lock storeLock;
+    private volatile boolean stopped;
+
+    /**
+     * @param userStore UserStore The store the users are written to
+     * @param usernameFilter UsernameFilter Filter updated with every registered user, or null if disabled
+     * @param chunkSize int Number of users hashed and inserted together
+     * @param hashingExecutor HashingExecutor The pool encrypting the passwords
+     * @param inFlight int Number of passwords of a batch queued on the hashing pool at the same time
+     * @param hashParams HashParams The parameters the passwords are encrypted with
+     * @param storeLock Lock Held while the user store is used; shutdown() must be called with it locked out
+     */
+    public BatchRegistrar(UserStore userStore, UsernameFilter usernameFilter, int chunkSize,
+                          HashingExecutor hashingExecutor, int inFlight, HashParams hashParams, Lock storeLock) {
+        this.userStore = userStore;
+        this.usernameFilter = usernameFilter;
+        this.chunkSize = chunkSize;
+        this.hashingExecutor = hashingExecutor;
+        this.inFlight = Math.max(1, inFlight);
+        this.hashParams = hashParams;
+        this.storeLock = storeLock;
+    }
+
+    /**
+     * Registers every {username, password} pair of the input
+     * @param credentials Iterator<String[]>
+     * @param results Consumer<String> Receives one "username: outcome" line per input pair, in input order
+     * @return long Number of users registered
+     */
+    public long register(Iterator<String[]> credentials, Consumer<String> results) {
+        long registered = 0;
+        List<String[]> chunk = new ArrayList<>(chunkSize);
+        while (credentials.hasNext()) {
+            chunk.add(credentials.next());
+            if (chunk.size() == chunkSize) {
+                registered += registerChunk(chunk, results);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            registered += registerChunk(chunk, results);
+        }
+        return registered;
+    }
+
+    /**
+     * Registers every user of a CSV stream with one "username,password" line per user. Blank lines and a
+     * "username,password" header line are skipped.
+     * @param csv BufferedReader
+     * @param results Consumer<String> Receives one "username: outcome" line per user
+     * @return long Number of users registered
+     */
+    public long importCsv(BufferedReader csv, Consumer<String> results) {
+        Iterator<String[]> credentials = csv.lines()
+                .filter(line -> !line.trim().isEmpty() && !line.trim().equalsIgnoreCase("username,password"))
+                .map(line -> {
+                    int comma = line.indexOf(',');
+                    return comma < 0 ? new String[]{line.trim(), null}
+                            : new String[]{line.substring(0, comma).trim(), line.substring(comma + 1)};
+                })
+                .iterator();
+        return register(credentials, results);
+    }
+
+    /**
+     * Fails every user not stored yet, in this batch and later ones
+     */
+    public void shutdown() {
+        stopped = true;
+    }
+
+    private int registerChunk(List<String[]> chunk, Consumer<String> results) {
+        String[] outcomes = new String[chunk.size()];
+        UserRecord[] records = new UserRecord[chunk.size()];
+
+        // Reject malformed entries and usernames repeated within the chunk before spending any hashing on them
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            String[] entry = chunk.get(i);
+            if (entry == null || entry.length < 2 || entry[0] == null || entry[0].isEmpty() || entry[1] == null) {
+                outcomes[i] = "failed (missing username or password)";
+            } else if (!seen.add(entry[0])) {
+                outcomes[i] = "already registered";
+            }
+        }
+
+        storeLock.lock();
+        try {
+            for (int i = 0; i < chunk.size(); i++) {
+                if (outcomes[i] == null) {
+                    outcomes[i] = stopped ? STOPPED : isKnownUser(chunk.get(i)[0]) ? "already registered" : null;
+                }
+            }
+        } finally {
+            storeLock.unlock();
+        }
+
+        hash(chunk, records, outcomes);
+
+        List<UserRecord> toInsert = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < records.length; i++) {
+            if (records[i] != null) {
+                toInsert.add(records[i]);
+                positions.add(i);
+            }
+        }
+
+        int registered = 0;
+        storeLock.lock();
+        try {
+            if (stopped) {
+                for (int i : positions) {
+                    outcomes[i] = STOPPED;
+                }
+            } else if (!toInsert.isEmpty()) {
+                boolean[] inserted = userStore.insertBatch(toInsert);
+                for (int j = 0; j < inserted.length; j++) {
+                    int i = positions.get(j);
+                    if (inserted[j]) {
+                        outcomes[i] = "registered";
+                        registered++;
+                        if (usernameFilter != null) {
+                            usernameFilter.add(toInsert.get(j).getUsername());
+                        }
+                    } else {
+                        outcomes[i] = "already registered";
+                    }
+                }
+            }
+        } catch (UserStoreException e) {
+            for (int i : positions) {
+                outcomes[i] = "failed (" + e.getMessage() + ")";
+            }
+        } finally {
+            storeLock.unlock();
+        }
+
+        for (int i = 0; i < outcomes.length; i++) {
+            String[] entry = chunk.get(i);
+            String username = entry == null || entry.length == 0 ? null : entry[0];
+            results.accept(username + ": " + outcomes[i]);
+        }
+        return registered;
+    }
+
+    /**
+     * Encrypts the password of every user of the chunk without an outcome yet, keeping at most inFlight of them on
+     * the hashing pool. A password the pool rejects or times out fails that user only.
+     */
+    private void hash(List<String[]> chunk, UserRecord[] records, String[] outcomes) {
+        List<Future<byte[]>> derivations = new ArrayList<>(Collections.nCopies(chunk.size(), null));
+        byte[][] salts = new byte[chunk.size()][];
+        ArrayDeque<Integer> pending = new ArrayDeque<>(inFlight);
+        for (int i = 0; i < chunk.size(); i++) {
+            if (outcomes[i] != null) {
+                continue;
+            }
+            if (stopped) {
+                outcomes[i] = STOPPED;
+                continue;
+            }
+            if (pending.size() == inFlight) {
+                collect(pending.poll(), chunk, derivations, salts, records, outcomes);
+            }
+            String password = chunk.get(i)[1];
+            try {
+                byte[] salt = PasswordHasher.generateSalt();
+                salts[i] = salt;
+                derivations.set(i, hashingExecutor.submit(() -> PasswordHasher.derive(password, salt, hashParams)));
+                pending.add(i);
+            } catch (NoSuchAlgorithmException | RejectedExecutionException e) {
+                outcomes[i] = "failed (" + e.getMessage() + ")";
+            }
+        }
+        while (!pending.isEmpty()) {
+            collect(pending.poll(), chunk, derivations, salts, records, outcomes);
+        }
+    }
+
+    private void collect(int i, List<String[]> chunk, List<Future<byte[]>> derivations, byte[][] salts,
+                         UserRecord[] records, String[] outcomes) {
+        try {
+            records[i] = new UserRecord(chunk.get(i)[0], hashingExecutor.await(derivations.get(i)), salts[i],
+                    hashParams);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | RuntimeException e) {
+            outcomes[i] = "failed (" + e.getMessage() + ")";
+        }
+    }
+
+    /**
+     * Uses the username filter, when there is one, to find users that are already registered without hashing their
+     * password first. Filter misses, the common case when importing new users, need no lookup at all.
+     */
+    private boolean isKnownUser(String username) {
+        if (usernameFilter == null || !usernameFilter.mightContain(username)) {
+            return false;
+        }
+        try {
+            return userStore.find(username) != null;
+        } catch (UserStoreException e) {
+            // let the batch insert decide
+            return false;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Client-side buffer that collects operations and sends them with one batch() call, either once the buffer is full,
+ * after a flush interval, or on flush()/close(). Every result is handed to the result consumer in submission order.
+ */
+public class BatchingClient implements AutoCloseable {
+    private final RemoteInterface stub;
+    private final String sessionKey;
+    private final int maxBatchSize;
+    private final Consumer<OperationResult> onResult;
+    private final ScheduledExecutorService flusher;
+    private List<BatchOperation> buffer = new ArrayList<>();
+
+    /**
+     * @param stub RemoteInterface
+     * @param sessionKey String
+     * @param maxBatchSize int Number of buffered operations that triggers a flush
+     * @param flushIntervalMillis long How often the buffer is flushed in the background, or 0 to only flush when full
+     * or on demand
+     * @param onResult Consumer<OperationResult> Receives the result of every operation
+     */
+    public BatchingClient(RemoteInterface stub, String sessionKey, int maxBatchSize, long flushIntervalMillis,
+                          Consumer<OperationResult> onResult) {
+        this.stub = stub;
+        this.sessionKey = sessionKey;
+        this.maxBatchSize = maxBatchSize;
+        this.onResult = onResult;
+        if (flushIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "batch-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Buffers an operation, flushing the buffer if it is full
+     * @param operation BatchOperation
+     * @throws RemoteException if a flush fails
+     */
+    public synchronized void submit(BatchOperation operation) throws RemoteException {
+        buffer.add(operation);
+        if (buffer.size() >= maxBatchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends every buffered operation in one call
+     * @throws RemoteException if the call fails; the operations of the failed call are dropped
+     */
+    public synchronized void flush() throws RemoteException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        List<BatchOperation> operations = buffer;
+        buffer = new ArrayList<>();
+
+        // when the server is OFF or the session expired, every result says so
+        stub.batch(operations, sessionKey).forEach(onResult);
+    }
+
+    /**
+     * Flushes the remaining operations and stops the background flusher
+     * @throws RemoteException if the final flush fails
+     */
+    @Override
+    public void close() throws RemoteException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RemoteException e) {
+            System.err.println("Could not flush batched operations: " + e);
+        }
+    }
+}
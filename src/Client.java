@@ -1,18 +1,31 @@
 import java.io.IOException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
+import java.util.StringJoiner;
 
 public class Client {
+    private static final int QUEUE_PAGE_SIZE = 20;
+    private static final long REPLICA_REFRESH_MILLIS = 30000;
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long STATUS_MAX_AGE_MILLIS = 30000;
+
     private String sessionKey;
+    private PrinterEventListener statusListener;
+    private volatile String printerStatus;
+    private volatile long printerStatusUpdatedAt;
 
     private Client() {
         this.sessionKey = null;
     }
 
-    private static String callServer(Client client, String command, RemoteInterface stub, Scanner scanner) throws IOException{
-        if(stub.status().equals("OFF")){
+    private static String callServer(Client client, String command, RemoteInterface stub, Scanner scanner)
+            throws IOException{
+        if(client.printerStatus(stub).equals("OFF")){
             switch (command){
                 case "status":
                     return stub.status();
@@ -39,6 +52,7 @@ public class Client {
                             return callServer(client, command, stub, scanner);
                         }
                         client.sessionKey = result;
+                        client.refreshPrinterStatus(stub);
                         return "You're in!";
                     case "register":
                         System.out.println("> Type in username:");
@@ -52,6 +66,7 @@ public class Client {
                             return callServer(client, command, stub, scanner);
                         }
                         client.sessionKey = result;
+                        client.refreshPrinterStatus(stub);
                         return "You're in!";
                     default:
                         System.out.println("> You have to Login or Register first...");
@@ -64,12 +79,20 @@ public class Client {
                         System.out.println("> Please provide filename to be printed:");
                         String filename = scanner.nextLine();
 
-                        System.out.println("> Please provide printer number:");
+                        System.out.println(printerPrompt(stub));
                         String printer = scanner.nextLine();
 
                         return stub.print(filename, printer, client.sessionKey);
+                    case "printAll":
+                        System.out.println("> Please provide filenames to be printed, separated by commas:");
+                        String filenames = scanner.nextLine();
+
+                        System.out.println(printerPrompt(stub));
+                        String batchPrinter = scanner.nextLine();
+
+                        return printAll(client, stub, filenames.split(","), batchPrinter);
                     case "queue":
-                        return stub.queue(client.sessionKey);
+                        return listQueue(client, stub, scanner);
                     case "topQueue":
                         System.out.println("> Please provide job ID:");
                         int jobID = scanner.nextInt();
@@ -81,20 +104,24 @@ public class Client {
                         try {
                             String result = stub.stop(client.sessionKey);
                             client.sessionKey = null;
+                            client.refreshPrinterStatus(stub);
                             return result;
                         } catch (SQLException e) {
                             e.printStackTrace();
                         }
                     case "restart":
                         try {
+                            // a hot restart keeps the session; after a cold one the next call reports it gone
                             String result = stub.restart(client.sessionKey);
-                            client.sessionKey = null;
+                            client.refreshPrinterStatus(stub);
                             return result;
                         } catch (SQLException e) {
                             e.printStackTrace();
                         }
                     case "status":
                         return stub.status();
+                    case "printers":
+                        return listPrinters(stub);
                     case "readConfig":
                         System.out.println("> Please provide config parameter:");
                         String param = scanner.nextLine();
@@ -110,7 +137,8 @@ public class Client {
                         return stub.setConfig(param, paramValue, client.sessionKey);
                     default:
                         System.out.println("Command not recognized. Available commands are: \n" +
-                                "print, queue, topQueue, start, stop, restart, status, readConfig, setConfig.\n" +
+                                "print, printAll, queue, topQueue, start, stop, restart, status, printers, " +
+                                "readConfig, setConfig.\n" +
                                 "> Please type in a command again:");
                         command = scanner.nextLine();
                         return callServer(client, command, stub, scanner);
@@ -119,26 +147,158 @@ public class Client {
         }
     }
 
+    /**
+     * Exports a callback that keeps the cached printer status up to date as the server pushes changes
+     * @throws RemoteException if the callback cannot be exported, in which case the status is polled instead
+     */
+    private void listenForPrinterEvents() throws RemoteException {
+        PrinterEventListener listener = event -> {
+            printerStatus = event.getPrinterStatus();
+            printerStatusUpdatedAt = System.currentTimeMillis();
+        };
+        // once exported, RMI passes the listener to the server as its stub
+        UnicastRemoteObject.exportObject(listener, 0);
+        statusListener = listener;
+    }
+
+    /**
+     * Returns the printer status pushed by the server. It is only fetched from the server when nothing has been
+     * pushed for a while, which also renews the subscription in case the server dropped it or the client failed over
+     * to another replica.
+     */
+    private String printerStatus(RemoteInterface stub) throws RemoteException {
+        if (printerStatus == null || System.currentTimeMillis() - printerStatusUpdatedAt > STATUS_MAX_AGE_MILLIS) {
+            refreshPrinterStatus(stub);
+        }
+        return printerStatus;
+    }
+
+    /**
+     * Fetches the printer status right away, (re)subscribing to printer events if the callback is exported and the
+     * user is logged in
+     */
+    private void refreshPrinterStatus(RemoteInterface stub) throws RemoteException {
+        String status = statusListener == null || sessionKey == null ? null
+                : stub.subscribe(statusListener, sessionKey);
+        if (status == null || Server.SERVER_OFF.equals(status) || Server.NOT_AUTHENTICATED.equals(status)
+                || Server.TOO_MANY_SUBSCRIPTIONS.equals(status)) {
+            status = stub.status();
+        }
+        printerStatus = status;
+        printerStatusUpdatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Prints several files with as few round trips as possible, by buffering them into batch() calls
+     */
+    private static String printAll(Client client, RemoteInterface stub, String[] filenames, String printer)
+            throws IOException {
+        StringBuilder output = new StringBuilder();
+        try (BatchingClient batch = new BatchingClient(stub, client.sessionKey, MAX_BATCH_SIZE, 0,
+                result -> output.append(result.getMessage()).append('\n'))) {
+            for (String filename : filenames) {
+                if (!filename.trim().isEmpty()) {
+                    batch.submit(BatchOperation.print(filename.trim(), printer));
+                }
+            }
+        }
+        return output.toString();
+    }
+
+    /**
+     * @return String The prompt for a printer, naming the printers the server has
+     */
+    private static String printerPrompt(RemoteInterface stub) throws RemoteException {
+        StringJoiner names = new StringJoiner(", ");
+        for (PrinterStatus printer : stub.printers()) {
+            names.add(printer.getName());
+        }
+        return "> Please provide printer number or name (" + names + "), or press Enter for the default printer:";
+    }
+
+    /**
+     * Lists every printer with what it is doing and how many jobs wait for it
+     */
+    private static String listPrinters(RemoteInterface stub) throws RemoteException {
+        List<PrinterStatus> printers = stub.printers();
+        if (printers.isEmpty()) {
+            return "No printers are known yet.";
+        }
+        StringBuilder output = new StringBuilder();
+        for (PrinterStatus printer : printers) {
+            output.append(printer).append('\n');
+        }
+        return output.toString();
+    }
+
+    /**
+     * Lists the print queue one page at a time, asking before fetching each further page
+     */
+    private static String listQueue(Client client, RemoteInterface stub, Scanner scanner) throws IOException {
+        String cursor = null;
+        do {
+            QueuePage page = stub.queue(cursor, QUEUE_PAGE_SIZE, client.sessionKey);
+            if (page.getError() != null) {
+                return page.getError();
+            }
+            if (cursor == null) {
+                System.out.println("List of files on the queue (" + page.getTotalJobs() + " jobs):");
+                if (page.getJobs().isEmpty()) {
+                    return " -- empty --";
+                }
+            }
+            for (PrintJob job : page.getJobs()) {
+                System.out.println(job.getId() + ". " + job.getFilename());
+            }
+
+            cursor = page.getNextCursor();
+            if (cursor != null) {
+                System.out.println("> Show more? (y/n)");
+                if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                    break;
+                }
+            }
+        } while (cursor != null);
+        return "";
+    }
+
     public static void main(String[] args) {
-        String host = (args.length < 1) ? null : args[0];
+        // Every argument is a registry host; without arguments the local registry is used
+        List<String> hosts = args.length < 1 ? Collections.singletonList(null) : Arrays.asList(args);
         String command;
+        Client client = new Client();
 
         try {
-            Client client = new Client();
-
-            Registry registry = LocateRegistry.getRegistry(host);
-            RemoteInterface stub = (RemoteInterface) registry.lookup("RemoteInterface");
+            RemoteInterface stub = ReplicaBalancer.connect(hosts, REPLICA_REFRESH_MILLIS);
+            try {
+                client.listenForPrinterEvents();
+            } catch (RemoteException e) {
+                System.err.println("Printer events unavailable, polling the printer status instead: " + e);
+            }
 
             Scanner scanner = new Scanner(System.in);
             while(true){
                 System.out.println("--> Type in a command:");
                 command = scanner.nextLine();
 
-                System.out.println(callServer(client, command, stub,scanner));
+                String output = callServer(client, command, stub,scanner);
+                if (Server.NOT_AUTHENTICATED.equals(output)) {
+                    // the session expired or was dropped, so the next command asks to log in again
+                    client.sessionKey = null;
+                }
+                System.out.println(output);
             }
         } catch (Exception e) {
             System.err.println("Client exception: " + e.toString());
             e.printStackTrace();
+        } finally {
+            if (client.statusListener != null) {
+                try {
+                    UnicastRemoteObject.unexportObject(client.statusListener, true);
+                } catch (RemoteException e) {
+                    // already unexported
+                }
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Printer configuration with lock-free, snapshot-consistent reads. The whole configuration is an immutable snapshot
+ * behind a volatile reference: readers never lock and always see every key of one version, while writers copy the
+ * snapshot, apply any number of changes, save it and swap it in, one writer at a time. Every change bumps the version.
+ *
+ * The configuration is saved to a local file after every change and loaded back on start. The file is
+ * [int magic][int format version][long config version][int entry count] followed by
+ * [int key length][key][int value length][value] per entry, UTF-8 encoded. It is written to a temporary file and
+ * renamed over the old one, so a crash leaves either the old or the new configuration.
+ */
+public class ConfigStore {
+    private static final int MAGIC = 0x434F4E46; // "CONF"
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    private volatile Snapshot snapshot;
+
+    private ConfigStore(File file, Snapshot snapshot) {
+        this.file = file;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Loads the configuration saved in a file, or starts an empty one if the file does not exist yet
+     * @param file File
+     * @return ConfigStore
+     * @throws IOException if the file cannot be read or is not a configuration file
+     */
+    public static ConfigStore open(File file) throws IOException {
+        if (!file.exists()) {
+            return new ConfigStore(file, new Snapshot(0, Collections.<String, String>emptyMap()));
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            if (in.remaining() < 20 || in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                throw new IOException(file + " is not a configuration file");
+            }
+            long version = in.getLong();
+            int count = in.getInt();
+            Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String key = readString(in);
+                values.put(key, readString(in));
+            }
+            return new ConfigStore(file, new Snapshot(version, Collections.unmodifiableMap(values)));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated configuration file " + file, e);
+        }
+    }
+
+    /**
+     * @param key String
+     * @return String The value of the key in the current snapshot, or null if it is not set
+     */
+    public String get(String key) {
+        return snapshot.values.get(key);
+    }
+
+    /**
+     * @return Snapshot The current configuration; it never changes, so several keys can be read consistently from it
+     */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Sets a single key
+     * @param key String
+     * @param value String The new value, or null to remove the key
+     * @return long The new version
+     * @throws IOException if the configuration cannot be saved; it is then left unchanged
+     */
+    public long set(String key, String value) throws IOException {
+        return update(Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Applies several changes atomically: readers see either none or all of them
+     * @param changes Map<String, String> New values by key; a null value removes the key
+     * @return long The new version
+     * @throws IOException if the configuration cannot be saved; it is then left unchanged
+     */
+    public synchronized long update(Map<String, String> changes) throws IOException {
+        Snapshot current = snapshot;
+        Map<String, String> values = new HashMap<>(current.values);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                values.remove(change.getKey());
+            } else {
+                values.put(change.getKey(), change.getValue());
+            }
+        }
+
+        Snapshot next = new Snapshot(current.version + 1, Collections.unmodifiableMap(values));
+        save(next);
+        snapshot = next;
+        return next.version;
+    }
+
+    private void save(Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + snapshot.values.size() * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(snapshot.version);
+        out.writeInt(snapshot.values.size());
+        for (Map.Entry<String, String> entry : snapshot.values.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            bytes.writeTo(fileOut);
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Corrupt configuration file");
+        }
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * One immutable version of the configuration
+     */
+    public static final class Snapshot implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long version;
+        private final Map<String, String> values;
+
+        private Snapshot(long version, Map<String, String> values) {
+            this.version = version;
+            this.values = values;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return Map<String, String> Read-only view of every key and value
+         */
+        public Map<String, String> getValues() {
+            return values;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of JDBC connections. Connections are validated when borrowed, idle connections above the minimum size
+ * are reaped in the background, and opening a connection is retried with exponential backoff so a database blip does
+ * not take the whole service down.
+ */
+public class ConnectionPool {
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+    private static final int CONNECT_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final String url;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutMillis;
+
+    private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<>();
+    private final ConcurrentHashMap<Connection, Boolean> borrowed = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final ScheduledExecutorService reaper;
+    private volatile boolean closed;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong failedValidations = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    /**
+     * @param url String JDBC url of the database
+     * @param minSize int Number of connections kept open even when idle
+     * @param maxSize int Maximum number of connections open at the same time
+     * @param borrowTimeoutMillis long How long borrow() waits for a free connection before giving up
+     * @param idleTimeoutMillis long How long a connection above minSize may sit idle before it is closed
+     * @throws SQLException if the minimum number of connections cannot be opened
+     */
+    public ConnectionPool(String url, int minSize, int maxSize, long borrowTimeoutMillis, long idleTimeoutMillis)
+            throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+
+        try {
+            for (int i = 0; i < minSize; i++) {
+                idle.offer(new IdleConnection(open()));
+            }
+        } catch (SQLException | RuntimeException e) {
+            // the connections opened so far would otherwise never be closed
+            IdleConnection opened;
+            while ((opened = idle.pollFirst()) != null) {
+                discard(opened.connection);
+            }
+            throw e;
+        }
+
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long reapInterval = Math.max(1000, idleTimeoutMillis / 2);
+        reaper.scheduleWithFixedDelay(this::reapIdle, reapInterval, reapInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a valid connection from the pool, opening a new one if needed. Every borrowed connection must be handed
+     * back with release().
+     * @return Connection
+     * @throws SQLException if the pool is closed, exhausted for longer than the borrow timeout, or the DB is down
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long waitStart = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + "ms waiting for a DB connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a DB connection", e);
+        }
+        recordWait(System.nanoTime() - waitStart);
+
+        try {
+            IdleConnection candidate;
+            while ((candidate = idle.pollFirst()) != null) {
+                if (isValid(candidate.connection)) {
+                    borrowed.put(candidate.connection, Boolean.TRUE);
+                    return candidate.connection;
+                }
+                failedValidations.incrementAndGet();
+                discard(candidate.connection);
+            }
+
+            Connection connection = openWithBackoff();
+            borrowed.put(connection, Boolean.TRUE);
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a borrowed connection back to the pool.
+     * @param connection Connection
+     */
+    public void release(Connection connection) {
+        if (connection == null || borrowed.remove(connection) == null) {
+            return;
+        }
+        if (closed) {
+            discard(connection);
+        } else {
+            idle.offerFirst(new IdleConnection(connection));
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes every idle connection and refuses further borrows. Connections still borrowed are closed when released.
+     */
+    public void close() {
+        closed = true;
+        reaper.shutdownNow();
+        IdleConnection candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            discard(candidate.connection);
+        }
+    }
+
+    /**
+     * @return int Number of connections currently borrowed
+     */
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    /**
+     * @return int Number of connections sitting idle in the pool
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return int Number of threads waiting for a connection
+     */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return long Number of successful borrows since the pool was created
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * @return double Mean time spent waiting for a connection, in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long count = borrowCount.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / (count * 1e6);
+    }
+
+    /**
+     * @return double Longest time spent waiting for a connection, in milliseconds
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * @return String One-line summary of the pool statistics
+     */
+    public String stats() {
+        return String.format("pool[min=%d, max=%d, open=%d, active=%d, idle=%d, waiting=%d, borrows=%d, "
+                        + "avgWait=%.3fms, maxWait=%.3fms, failedValidations=%d, reconnects=%d]",
+                minSize, maxSize, openCount.get(), getActiveCount(), getIdleCount(), getWaitingCount(),
+                borrowCount.get(), getAverageWaitMillis(), getMaxWaitMillis(), failedValidations.get(),
+                reconnects.get());
+    }
+
+    private void recordWait(long waitNanos) {
+        borrowCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            // retry until this wait is recorded or a longer one wins
+        }
+    }
+
+    private boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException | AbstractMethodError e) {
+            // very old drivers do not implement isValid, so fall back to checking the connection is still open
+            try {
+                return !connection.isClosed();
+            } catch (SQLException closedCheck) {
+                return false;
+            }
+        }
+    }
+
+    private Connection openWithBackoff() throws SQLException {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        SQLException lastError = null;
+        for (int attempt = 1; attempt <= CONNECT_ATTEMPTS; attempt++) {
+            try {
+                Connection connection = open();
+                if (attempt > 1) {
+                    reconnects.incrementAndGet();
+                }
+                return connection;
+            } catch (SQLException e) {
+                lastError = e;
+                if (attempt == CONNECT_ATTEMPTS) {
+                    break;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+        throw lastError;
+    }
+
+    private Connection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        openCount.incrementAndGet();
+        return connection;
+    }
+
+    private void discard(Connection connection) {
+        openCount.decrementAndGet();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // the connection is being thrown away anyway
+        }
+    }
+
+    /**
+     * Closes connections that have been idle for longer than the idle timeout, keeping at least minSize open.
+     */
+    void reapIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<IdleConnection> it = idle.descendingIterator();
+        while (it.hasNext() && openCount.get() > minSize) {
+            IdleConnection candidate = it.next();
+            if (now - candidate.idleSince > idleTimeoutMillis && idle.remove(candidate)) {
+                discard(candidate.connection);
+            }
+        }
+    }
+
+    private static final class IdleConnection {
+        private final Connection connection;
+        private final long idleSince;
+
+        private IdleConnection(Connection connection) {
+            this.connection = connection;
+            this.idleSince = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte and latency counters of one connection made or accepted through TunedSocketFactory, plus totals over every
+ * such connection of this JVM.
+ *
+ * Payload bytes are what RMI reads and writes; wire bytes are what crosses the socket after compression, so the two
+ * only differ on compressed connections. Turnaround is the time a connection takes to answer: on the server, from
+ * the first byte of a request to the first byte of its response; on the client, from the first byte of a request to
+ * the first byte of its response coming back, i.e. the round trip.
+ */
+public final class ConnectionStats {
+    private static final AtomicLong IDS = new AtomicLong();
+    private static final ConcurrentHashMap<Long, ConnectionStats> OPEN = new ConcurrentHashMap<>();
+    private static final LongAdder OPENED = new LongAdder();
+    private static final LongAdder BYTES_READ = new LongAdder();
+    private static final LongAdder BYTES_WRITTEN = new LongAdder();
+    private static final LongAdder WIRE_BYTES_READ = new LongAdder();
+    private static final LongAdder WIRE_BYTES_WRITTEN = new LongAdder();
+    private static final LongAdder TLS_FULL_HANDSHAKES = new LongAdder();
+    private static final LongAdder TLS_RESUMED = new LongAdder();
+    private static final LatencyHistogram CONNECT_LATENCY = new LatencyHistogram();
+    private static final LatencyHistogram TURNAROUND_LATENCY = new LatencyHistogram();
+
+    private final long id = IDS.incrementAndGet();
+    private final boolean server;
+    private final String peer;
+    private final long openedAt = System.currentTimeMillis();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong wireBytesRead = new AtomicLong();
+    private final AtomicLong wireBytesWritten = new AtomicLong();
+    private volatile long connectNanos;
+    private volatile String tls = "";
+
+    // guarded by this
+    private boolean active;
+    private boolean writing;
+    private long turnStartedAt;
+    private long turns;
+    private long turnNanosTotal;
+    private long turnNanosMax;
+
+    private ConnectionStats(boolean server, String peer) {
+        this.server = server;
+        this.peer = peer;
+    }
+
+    /**
+     * @param server boolean True for an accepted connection, false for one this JVM connected
+     * @param peer String The address of the other end
+     * @return ConnectionStats The counters of the new connection, listed until closed
+     */
+    static ConnectionStats open(boolean server, String peer) {
+        ConnectionStats stats = new ConnectionStats(server, peer);
+        OPEN.put(stats.id, stats);
+        OPENED.increment();
+        return stats;
+    }
+
+    void closed() {
+        OPEN.remove(id);
+    }
+
+    /**
+     * @param nanos long Time taken to connect, including the TLS handshake if any
+     */
+    void connected(long nanos) {
+        connectNanos = nanos;
+        CONNECT_LATENCY.record(nanos);
+    }
+
+    /**
+     * @param protocol String The negotiated TLS protocol
+     * @param resumed boolean Whether the handshake resumed an earlier session instead of running in full
+     */
+    void handshake(String protocol, boolean resumed) {
+        tls = " " + protocol + (resumed ? " resumed" : " full");
+        (resumed ? TLS_RESUMED : TLS_FULL_HANDSHAKES).increment();
+    }
+
+    void read(int bytes) {
+        bytesRead.addAndGet(bytes);
+        BYTES_READ.add(bytes);
+        turn(false);
+    }
+
+    void written(int bytes) {
+        bytesWritten.addAndGet(bytes);
+        BYTES_WRITTEN.add(bytes);
+        turn(true);
+    }
+
+    void wireRead(int bytes) {
+        wireBytesRead.addAndGet(bytes);
+        WIRE_BYTES_READ.add(bytes);
+    }
+
+    void wireWritten(int bytes) {
+        wireBytesWritten.addAndGet(bytes);
+        WIRE_BYTES_WRITTEN.add(bytes);
+    }
+
+    /**
+     * Times the switches between reading and writing. A server turns around when it starts writing after reading, a
+     * client when it starts reading after writing.
+     */
+    private synchronized void turn(boolean write) {
+        if (active && write == writing) {
+            return;
+        }
+        if (server == write) {
+            if (turnStartedAt != 0) {
+                long nanos = System.nanoTime() - turnStartedAt;
+                turns++;
+                turnNanosTotal += nanos;
+                turnNanosMax = Math.max(turnNanosMax, nanos);
+                TURNAROUND_LATENCY.record(nanos);
+                turnStartedAt = 0;
+            }
+        } else {
+            turnStartedAt = System.nanoTime();
+        }
+        writing = write;
+        active = true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("#%d %s %s%s age=%ds in=%d/%d out=%d/%d connect=%.3fms turns=%d avgTurn=%.3fms "
+                        + "maxTurn=%.3fms", id, server ? "from" : "to", peer, tls,
+                (System.currentTimeMillis() - openedAt) / 1000, bytesRead.get(), wireBytesRead.get(),
+                bytesWritten.get(), wireBytesWritten.get(), connectNanos / 1e6, turns,
+                turns == 0 ? 0 : turnNanosTotal / (turns * 1e6), turnNanosMax / 1e6);
+    }
+
+    /**
+     * @return String One line per open connection: payload/wire bytes in and out, connect time and turnarounds
+     */
+    public static String describeOpen() {
+        List<ConnectionStats> open = new ArrayList<>(OPEN.values());
+        open.sort((a, b) -> Long.compare(a.id, b.id));
+        StringBuilder out = new StringBuilder();
+        for (ConnectionStats stats : open) {
+            out.append(stats).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return String Totals over every connection of this JVM
+     */
+    public static String summary() {
+        return String.format("connections[open=%d, opened=%d, in=%d/%d, out=%d/%d, tlsFull=%d, tlsResumed=%d]%n"
+                        + "  connect    %s%n  turnaround %s", OPEN.size(), OPENED.sum(), BYTES_READ.sum(),
+                WIRE_BYTES_READ.sum(), BYTES_WRITTEN.sum(), WIRE_BYTES_WRITTEN.sum(), TLS_FULL_HANDSHAKES.sum(),
+                TLS_RESUMED.sum(), CONNECT_LATENCY.summary(), TURNAROUND_LATENCY.summary());
+    }
+
+    public static int getOpenCount() {
+        return OPEN.size();
+    }
+
+    public static long getBytesRead() {
+        return BYTES_READ.sum();
+    }
+
+    public static long getBytesWritten() {
+        return BYTES_WRITTEN.sum();
+    }
+
+    public static long getWireBytesRead() {
+        return WIRE_BYTES_READ.sum();
+    }
+
+    public static long getWireBytesWritten() {
+        return WIRE_BYTES_WRITTEN.sum();
+    }
+
+    public static long getTlsFullHandshakes() {
+        return TLS_FULL_HANDSHAKES.sum();
+    }
+
+    public static long getTlsResumed() {
+        return TLS_RESUMED.sum();
+    }
+
+    public static LatencyHistogram getConnectLatency() {
+        return CONNECT_LATENCY;
+    }
+
+    public static LatencyHistogram getTurnaroundLatency() {
+        return TURNAROUND_LATENCY;
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.Comparator;
+
+/**
+ * Order in which a printer takes the jobs queued for it: the job that compares lowest is printed next. Ties are
+ * broken by job ID, so a policy only needs to say what matters to it.
+ *
+ * The built-in policies are "fifo", "priority" and "shortest"; any other name is loaded as the class name of a
+ * DispatchPolicy with a public no-argument constructor.
+ */
+@FunctionalInterface
+public interface DispatchPolicy extends Comparator<PrintScheduler.QueuedJob> {
+
+    /**
+     * In order of arrival. A job moved with topQueue counts as the earliest arrival.
+     */
+    DispatchPolicy FIFO = (a, b) -> Long.compare(a.getJob().getRank(), b.getJob().getRank());
+
+    /**
+     * Higher priorities first, then in order of arrival: the order of the print queue itself
+     */
+    DispatchPolicy PRIORITY = (a, b) -> {
+        int byPriority = Integer.compare(b.getJob().getPriority(), a.getJob().getPriority());
+        return byPriority != 0 ? byPriority : FIFO.compare(a, b);
+    };
+
+    /**
+     * Smallest estimated cost first, then in order of arrival. This minimizes the average wait but can starve large
+     * jobs while small ones keep arriving; topQueue only reorders jobs of equal cost.
+     */
+    DispatchPolicy SHORTEST_JOB = (a, b) -> {
+        int byCost = Long.compare(a.getCost(), b.getCost());
+        return byCost != 0 ? byCost : FIFO.compare(a, b);
+    };
+
+    /**
+     * @param name String "fifo", "priority", "shortest" or a class name
+     * @return DispatchPolicy
+     * @throws ReflectiveOperationException if the name is neither built in nor a loadable DispatchPolicy class
+     */
+    static DispatchPolicy named(String name) throws ReflectiveOperationException {
+        switch (name) {
+            case "fifo":
+                return FIFO;
+            case "priority":
+                return PRIORITY;
+            case "shortest":
+                return SHORTEST_JOB;
+            default:
+                return Class.forName(name).asSubclass(DispatchPolicy.class).getDeclaredConstructor().newInstance();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * AuditSink appending one line per event (see AuditEvent.appendLine()) to "audit.log" in a directory. Each batch is
+ * encoded once and written with a single write call. Once the file reaches maxBytes it is renamed to "audit-N.log",
+ * N counting up, and a new one is started; only the newest maxFiles renamed files are kept.
+ */
+public class FileAuditSink implements AuditSink {
+    private static final String CURRENT = "audit.log";
+
+    private final File dir;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final boolean sync;
+    private final StringBuilder lines = new StringBuilder(8192);
+    private FileChannel channel;
+    private long size;
+
+    /**
+     * Opens the log in a directory, creating it if needed, and appends to the current file if there is one
+     * @param dir File
+     * @param maxBytes long Size at which the current file is rolled over
+     * @param maxFiles int Number of rolled over files kept
+     * @param sync boolean Whether each batch is forced to disk before the next one is taken
+     * @throws IOException if the directory or the file cannot be created
+     */
+    public FileAuditSink(File dir, long maxBytes, int maxFiles, boolean sync) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.sync = sync;
+        Files.createDirectories(dir.toPath());
+        open();
+    }
+
+    @Override
+    public void write(List<AuditEvent> events) throws IOException {
+        lines.setLength(0);
+        for (AuditEvent event : events) {
+            event.appendLine(lines);
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(lines));
+        size += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        if (size >= maxBytes) {
+            rollOver();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Could not close the audit log: " + e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new File(dir, CURRENT).getPath();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(new File(dir, CURRENT).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    private void rollOver() throws IOException {
+        channel.close();
+        TreeSet<Long> rolled = rolledFiles();
+        long next = rolled.isEmpty() ? 1 : rolled.last() + 1;
+        Files.move(new File(dir, CURRENT).toPath(), rolledFile(next).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        rolled.add(next);
+        while (rolled.size() > maxFiles) {
+            Files.deleteIfExists(rolledFile(rolled.pollFirst()).toPath());
+        }
+        open();
+    }
+
+    private File rolledFile(long number) {
+        return new File(dir, "audit-" + number + ".log");
+    }
+
+    private TreeSet<Long> rolledFiles() {
+        TreeSet<Long> numbers = new TreeSet<>();
+        String[] names = dir.list();
+        if (names == null) {
+            return numbers;
+        }
+        for (String name : names) {
+            if (name.startsWith("audit-") && name.endsWith(".log")) {
+                try {
+                    numbers.add(Long.parseLong(name.substring(6, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return numbers;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * The parameters a password hash was derived with, stored with every user so they can change over time. Encoded as
+ * "algorithm:iterations:keyBits", e.g. "PBKDF2WithHmacSHA1:10000:160".
+ */
+public final class HashParams {
+    /**
+     * The parameters of every hash stored before they were recorded per user
+     */
+    public static final HashParams LEGACY = new HashParams("PBKDF2WithHmacSHA1", 10000, 160);
+
+    /**
+     * Share of the target iterations, in percent, below which a hash is derived again
+     */
+    public static final int REHASH_PERCENT = 80;
+
+    private final String algorithm;
+    private final int iterations;
+    private final int keyBits;
+
+    public HashParams(String algorithm, int iterations, int keyBits) {
+        if (iterations < 1 || keyBits < 1) {
+            throw new IllegalArgumentException("Invalid hash parameters " + algorithm + ":" + iterations + ":" + keyBits);
+        }
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.keyBits = keyBits;
+    }
+
+    /**
+     * @param encoded String Parameters as returned by encode(), or null for a hash stored without them
+     * @return HashParams
+     * @throws IllegalArgumentException if the string is not a valid encoding
+     */
+    public static HashParams parse(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return LEGACY;
+        }
+        String[] parts = encoded.split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid hash parameters \"" + encoded + "\"");
+        }
+        return new HashParams(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+    }
+
+    /**
+     * @return String The parameters in the form read by parse()
+     */
+    public String encode() {
+        return algorithm + ":" + iterations + ":" + keyBits;
+    }
+
+    /**
+     * A hash needs to be derived again if it uses another algorithm or key length, or clearly fewer iterations than
+     * the target: below REHASH_PERCENT of it. The calibrated target drifts by a few percent between restarts, which
+     * alone must not rehash every user on their next login. Hashes with more iterations are kept, so a slower
+     * calibration never weakens them.
+     * @param target HashParams The parameters new hashes are derived with
+     * @return True/False
+     */
+    public boolean needsRehash(HashParams target) {
+        return !algorithm.equals(target.algorithm) || keyBits != target.keyBits
+                || iterations * 100L < (long) target.iterations * REHASH_PERCENT;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int getKeyBits() {
+        return keyBits;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HashParams)) {
+            return false;
+        }
+        HashParams other = (HashParams) o;
+        return algorithm.equals(other.algorithm) && iterations == other.iterations && keyBits == other.keyBits;
+    }
+
+    @Override
+    public int hashCode() {
+        return (algorithm.hashCode() * 31 + iterations) * 31 + keyBits;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
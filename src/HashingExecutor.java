@@ -0,0 +1,191 @@
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Separately sized worker pool for password derivation, so a burst of logins cannot occupy every RMI thread and
+ * stall cheap calls like status() and queue(). Waiting work is held in a bounded queue; once it is full new work is
+ * rejected immediately instead of piling up. Time spent waiting in the queue and time spent hashing are recorded
+ * separately.
+ */
+public class HashingExecutor {
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private final AtomicLong totalHashNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    private final AtomicLong maxHashNanos = new AtomicLong();
+
+    /**
+     * @param threads int Number of hashing threads
+     * @param queueCapacity int Number of derivations allowed to wait for a free thread
+     * @param timeoutMillis long How long a caller waits for its derivation before giving up
+     */
+    public HashingExecutor(int threads, int queueCapacity, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "password-hasher-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Runs a password derivation on the hashing pool and waits for its result
+     * @param derivation Callable<byte[]>
+     * @return byte[] The derived key
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     * @throws RejectedExecutionException if the wait queue is full, the pool is shut down or the derivation timed out
+     */
+    public byte[] derive(Callable<byte[]> derivation) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return await(submit(derivation));
+    }
+
+    /**
+     * Queues a password derivation on the hashing pool without waiting for it, so a caller with many passwords can
+     * keep a few derivations in flight
+     * @param derivation Callable<byte[]>
+     * @return Future<byte[]> To be passed to await()
+     * @throws RejectedExecutionException if the wait queue is full or the pool is shut down
+     */
+    public Future<byte[]> submit(Callable<byte[]> derivation) {
+        long enqueuedAt = System.nanoTime();
+        try {
+            return executor.submit(() -> {
+                long startedAt = System.nanoTime();
+                record(totalQueueWaitNanos, maxQueueWaitNanos, startedAt - enqueuedAt);
+                try {
+                    return derivation.call();
+                } finally {
+                    record(totalHashNanos, maxHashNanos, System.nanoTime() - startedAt);
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Password hashing queue is full", e);
+        }
+    }
+
+    /**
+     * Waits for a derivation queued with submit()
+     * @param future Future<byte[]>
+     * @return byte[] The derived key
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     * @throws RejectedExecutionException if the derivation timed out or the pool was shut down meanwhile
+     */
+    public byte[] await(Future<byte[]> future) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Password hashing timed out after " + timeoutMillis + "ms");
+        } catch (CancellationException e) {
+            throw new RejectedExecutionException("Password hashing was cancelled");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for password hashing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            }
+            if (cause instanceof InvalidKeySpecException) {
+                throw (InvalidKeySpecException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Password hashing failed", cause);
+        }
+    }
+
+    /**
+     * Stops the hashing threads. Waiting derivations are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return int Number of derivations waiting for a free hashing thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return long Number of derivations rejected because the queue was full or they timed out
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return double Mean time a derivation waited in the queue, in milliseconds
+     */
+    public double getAverageQueueWaitMillis() {
+        long count = completed.get();
+        return count == 0 ? 0 : totalQueueWaitNanos.get() / (count * 1e6);
+    }
+
+    /**
+     * @return double Mean time spent deriving a key, in milliseconds
+     */
+    public double getAverageHashMillis() {
+        long count = completed.get();
+        return count == 0 ? 0 : totalHashNanos.get() / (count * 1e6);
+    }
+
+    /**
+     * @return long Total time derivations spent waiting in the queue, in nanoseconds
+     */
+    public long getTotalQueueWaitNanos() {
+        return totalQueueWaitNanos.get();
+    }
+
+    /**
+     * @return long Total time spent deriving keys, in nanoseconds
+     */
+    public long getTotalHashNanos() {
+        return totalHashNanos.get();
+    }
+
+    /**
+     * @return String One-line summary of the per-stage timings
+     */
+    public String stats() {
+        return String.format("hashing[threads=%d, queued=%d, completed=%d, rejected=%d, avgQueueWait=%.3fms, "
+                        + "maxQueueWait=%.3fms, avgHash=%.3fms, maxHash=%.3fms]",
+                executor.getMaximumPoolSize(), getQueueDepth(), completed.get(), rejected.get(),
+                getAverageQueueWaitMillis(), maxQueueWaitNanos.get() / 1e6, getAverageHashMillis(),
+                maxHashNanos.get() / 1e6);
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // retry until this sample is recorded or a larger one wins
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wraps the server in a proxy that times every RemoteInterface call and counts its outcome. A call answered with
+ * Server.NOT_AUTHENTICATED counts as not authenticated; a call that throws, or returns null where a value was
+ * expected, counts as failed. Overloaded methods are told apart by their number of parameters, e.g. "queue/1" and
+ * "queue/3", so each variant gets a latency histogram of its own.
+ */
+public class InstrumentedRemote implements InvocationHandler {
+    private final RemoteInterface target;
+    private final ServerMetrics metrics;
+    private final Map<Method, String> operationNames = new HashMap<>();
+
+    private InstrumentedRemote(RemoteInterface target, ServerMetrics metrics) {
+        this.target = target;
+        this.metrics = metrics;
+        Map<String, Integer> overloads = new HashMap<>();
+        for (Method method : RemoteInterface.class.getMethods()) {
+            overloads.merge(method.getName(), 1, Integer::sum);
+        }
+        for (Method method : RemoteInterface.class.getMethods()) {
+            operationNames.put(method, overloads.get(method.getName()) == 1 ? method.getName()
+                    : method.getName() + "/" + method.getParameterCount());
+        }
+    }
+
+    /**
+     * @param target RemoteInterface
+     * @param metrics ServerMetrics
+     * @return RemoteInterface A proxy recording the metrics of every call before handing it to the target
+     */
+    public static RemoteInterface wrap(RemoteInterface target, ServerMetrics metrics) {
+        return (RemoteInterface) Proxy.newProxyInstance(RemoteInterface.class.getClassLoader(),
+                new Class<?>[]{RemoteInterface.class}, new InstrumentedRemote(target, metrics));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(target, args);
+        }
+
+        ServerMetrics.Operation operation = metrics.operation(operationNames.get(method));
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            operation.failure(System.nanoTime() - start);
+            throw e.getCause();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        if (Server.NOT_AUTHENTICATED.equals(result)) {
+            operation.notAuthenticated(elapsed);
+        } else if (result == null && method.getReturnType() != void.class) {
+            operation.failure(elapsed);
+        } else {
+            operation.success(elapsed);
+        }
+        return result;
+    }
+}
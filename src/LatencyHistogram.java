@@ -0,0 +1,144 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: every power of two is split into 16 equal sub-buckets, so
+ * any recorded value is reported within about 6% of its true value, from nanoseconds up to hours, in a fixed 960
+ * slots. Recording is a couple of atomic increments; percentiles are computed from a racy but consistent-enough
+ * snapshot of the counts.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos long A latency in nanoseconds; negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry until this value is recorded or a larger one wins
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return sum.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile double Between 0 and 100, e.g. 99.9
+     * @return long The highest latency, in nanoseconds, of the bucket holding the given percentile
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return String p50/p99/p999/max in milliseconds plus the number of samples
+     */
+    public String summary() {
+        return String.format("count=%d p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms", getCount(),
+                getPercentileNanos(50) / 1e6, getPercentileNanos(99) / 1e6, getPercentileNanos(99.9) / 1e6,
+                getMaxNanos() / 1e6);
+    }
+
+    /**
+     * Percentile distribution in the text format HdrHistogram writes to .hgrm files, so it can be plotted with the
+     * same tools: each percentile level halves the distance to 100% in the given number of steps
+     * @param ticksPerHalfDistance int Number of lines between 0% and 50%, 50% and 75%, and so on
+     * @return String One "value(ms) percentile totalCount 1/(1-percentile)" line per level plus a summary footer
+     */
+    public String percentileDistribution(int ticksPerHalfDistance) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long maxNanos = max.get();
+
+        StringBuilder out = new StringBuilder(String.format("%12s %14s %10s %14s%n%n", "Value", "Percentile",
+                "TotalCount", "1/(1-Percentile)"));
+        double percentile = 0;
+        int bucket = 0;
+        long seen = total == 0 ? 0 : snapshot[0];
+        while (total > 0) {
+            long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            while (seen < target) {
+                seen += snapshot[++bucket];
+            }
+            double value = Math.min(upperBound(bucket), maxNanos) / 1e6;
+            if (seen == total) {
+                out.append(String.format("%12.3f %1.12f %10d%n", value, 1.0, total));
+                break;
+            }
+            out.append(String.format("%12.3f %1.12f %10d %14.2f%n", value, percentile / 100, seen,
+                    1 / (1 - percentile / 100)));
+            long halfDistance = 1L << ((int) (Math.log(100 / (100 - percentile)) / Math.log(2)) + 1);
+            percentile += 100.0 / (ticksPerHalfDistance * halfDistance);
+        }
+        out.append(String.format("#[Mean    = %12.3f, Max   = %12.3f]%n", getMeanNanos() / 1e6, maxNanos / 1e6));
+        out.append(String.format("#[Total count = %10d, Buckets = %d, SubBuckets = %d]%n", total, BUCKETS,
+                SUB_BUCKETS));
+        return out.toString();
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_BUCKETS + (long) (index % SUB_BUCKETS)) << (exponent - SUB_BITS)) + width - 1;
+    }
+}
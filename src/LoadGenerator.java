@@ -0,0 +1,418 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load driver and soak test: runs a weighted mix of calls against the print server from many threads and
+ * reports throughput and latency percentiles, without any console interaction.
+ *
+ *   java -Dauth.load.threads=32 -Dauth.load.seconds=600 LoadGenerator [registry host...]
+ *
+ * In "closed" mode (the default) every worker issues its next call as soon as the previous one returned, so the
+ * offered load follows the server's speed. In "open" mode calls are due at a fixed total rate of "auth.load.rate"
+ * per second whatever the server does, and each latency is measured from when its call was due rather than when a
+ * worker got to it: a stalled server shows up in the percentiles instead of silently lowering the rate.
+ * "auth.load.threads" then only caps the number of calls in flight.
+ *
+ * Other properties: "auth.load.mix" weights the operations, e.g. "print=40,queue=30,authenticate=10";
+ * "auth.load.seconds" and "auth.load.warmupSeconds" time the measured run and the unrecorded warm-up before it;
+ * "auth.load.reportSeconds" prints one interval line that often; "auth.load.users" is the number of accounts the
+ * workers log in with, one per thread by default, as a login may end the other sessions of its account;
+ * "auth.load.hgrmDir" writes the percentile distribution of every operation as an .hgrm file.
+ *
+ * With "auth.load.embedded" the server runs in this JVM behind a registry of its own, on the embedded file store in
+ * a temporary directory, with login rate limiting off and a fixed hash iteration count, so runs are repeatable
+ * without a database. Against a standalone server, pass -Dauth.ratelimit.enabled=false to it, or the login
+ * limits quickly turn authenticate calls into failures.
+ */
+public class LoadGenerator {
+    private static final String[] OPERATIONS = {"register", "authenticate", "print", "queue", "topQueue",
+            "readConfig", "setConfig"};
+    private static final String DEFAULT_MIX = "register=1,authenticate=10,print=30,queue=30,topQueue=10,"
+            + "readConfig=17,setConfig=2";
+    private static final String ALL = "all";
+    private static final String CONFIG_PARAMETER = "load.parameter";
+    private static final int QUEUE_PAGE_SIZE = 20;
+    private static final int PRINTERS = 4;
+    private static final long REPLICA_REFRESH_MILLIS = 30000;
+
+    private final RemoteInterface stub;
+    private final boolean openLoop = "open".equals(System.getProperty("auth.load.mode", "closed"));
+    private final int threads = Integer.getInteger("auth.load.threads", 8);
+    private final double rate = Double.parseDouble(System.getProperty("auth.load.rate", "100"));
+    private final long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("auth.load.seconds", 60L));
+    private final long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("auth.load.warmupSeconds", 5L));
+    private final long reportSeconds = Long.getLong("auth.load.reportSeconds", 10L);
+    private final int users = Math.max(1, Integer.getInteger("auth.load.users", threads));
+    private final String hgrmDir = System.getProperty("auth.load.hgrmDir");
+
+    private final String[] mixOperations;
+    private final int[] mixWeights;
+    private final int totalWeight;
+
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong registered = new AtomicLong();
+    private final AtomicLong arrivals = new AtomicLong();
+    private final ServerMetrics measured = new ServerMetrics();
+    private volatile ServerMetrics interval = new ServerMetrics();
+    private volatile long intervalStartedAt;
+    private final LongAdder errors = new LongAdder();
+    private volatile String lastError;
+    private String[] sessionKeys;
+    private long startedAt;
+    private long measureFrom;
+    private long endAt;
+
+    private enum Outcome {
+        SUCCESS, FAILURE, NOT_AUTHENTICATED
+    }
+
+    private LoadGenerator(RemoteInterface stub, String mix) {
+        this.stub = stub;
+        String[] entries = mix.split(",");
+        mixOperations = new String[entries.length];
+        mixWeights = new int[entries.length];
+        int weight = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] entry = entries[i].trim().split("=");
+            if (entry.length != 2 || !Arrays.asList(OPERATIONS).contains(entry[0].trim())) {
+                throw new IllegalArgumentException("Invalid mix entry \"" + entries[i] + "\", expected one of "
+                        + Arrays.toString(OPERATIONS) + " as operation=weight");
+            }
+            mixOperations[i] = entry[0].trim();
+            weight += Integer.parseInt(entry[1].trim());
+            mixWeights[i] = weight;
+        }
+        if (weight <= 0) {
+            throw new IllegalArgumentException("The mix \"" + mix + "\" has no weight");
+        }
+        totalWeight = weight;
+    }
+
+    /**
+     * Starts the printer if it is off, logs into every load account, registering those that do not exist yet, and
+     * gives the config parameter read by readConfig calls a value
+     * @throws IOException if the server cannot be reached or an account can neither be registered nor logged into
+     */
+    private void prepare() throws IOException {
+        if ("OFF".equals(stub.status())) {
+            System.out.println(stub.start());
+        }
+        sessionKeys = new String[users];
+        for (int i = 0; i < users; i++) {
+            sessionKeys[i] = login(i);
+        }
+        stub.setConfig(CONFIG_PARAMETER, runId, sessionKeys[0]);
+    }
+
+    /**
+     * Registers load account i, or logs into it if it already exists from an earlier run
+     */
+    private String login(int user) throws RemoteException {
+        String sessionKey = stub.register(username(user), password(user));
+        if (sessionKey == null) {
+            sessionKey = stub.authenticate(username(user), password(user));
+        }
+        if (sessionKey == null) {
+            throw new RemoteException("Could not register or log in as " + username(user)
+                    + "; is login rate limiting off on the server (-Dauth.ratelimit.enabled=false)?");
+        }
+        return sessionKey;
+    }
+
+    private void run() throws InterruptedException {
+        startedAt = System.nanoTime();
+        intervalStartedAt = startedAt;
+        measureFrom = startedAt + warmupNanos;
+        endAt = measureFrom + durationNanos;
+        System.out.println("Running " + (openLoop ? "open loop at " + rate + " calls/s" : "closed loop") + " with "
+                + threads + " threads for " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + "s after a "
+                + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + "s warm-up");
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-report");
+            t.setDaemon(true);
+            return t;
+        });
+        if (reportSeconds > 0) {
+            reporter.scheduleAtFixedRate(this::reportInterval, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+        }
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(i), "load-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        reporter.shutdownNow();
+    }
+
+    private void reportInterval() {
+        ServerMetrics ended = interval;
+        long endedStartedAt = intervalStartedAt;
+        long now = System.nanoTime();
+        interval = new ServerMetrics();
+        intervalStartedAt = now;
+        ServerMetrics.Operation all = ended.operation(ALL);
+        long failed = all.getFailureCount() + all.getNotAuthenticatedCount();
+        System.out.println(String.format("%7.1fs %s %9.1f calls/s failed=%d %s", (now - startedAt) / 1e9,
+                endedStartedAt < measureFrom ? "warm-up " : "measured",
+                all.getLatency().getCount() / ((now - endedStartedAt) / 1e9), failed, all.getLatency().summary()));
+    }
+
+    private void report() throws IOException {
+        double seconds = durationNanos / 1e9;
+        System.out.println("--- load results (" + (openLoop ? "open loop at " + rate + " calls/s" : "closed loop")
+                + ", " + threads + " threads, " + (long) seconds + "s) ---");
+        List<String> names = new ArrayList<>(Arrays.asList(OPERATIONS));
+        names.add(ALL);
+        for (String name : names) {
+            ServerMetrics.Operation op = measured.operation(name);
+            if (op.getLatency().getCount() == 0) {
+                continue;
+            }
+            System.out.println(String.format("%-14s %9.1f calls/s ok=%d failed=%d notAuth=%d %s", name,
+                    op.getLatency().getCount() / seconds, op.getSuccessCount(), op.getFailureCount(),
+                    op.getNotAuthenticatedCount(), op.getLatency().summary()));
+        }
+        if (errors.sum() > 0) {
+            System.out.println(errors.sum() + " calls threw, the last with: " + lastError);
+        }
+        System.out.println(ConnectionStats.summary());
+        for (PrinterStatus printer : stub.printers()) {
+            System.out.println("  " + printer);
+        }
+        System.out.println();
+        System.out.println("Latency distribution of all calls, in milliseconds:");
+        System.out.print(measured.operation(ALL).getLatency().percentileDistribution(5));
+
+        if (hgrmDir != null) {
+            Path dir = Files.createDirectories(Paths.get(hgrmDir));
+            for (String name : names) {
+                LatencyHistogram latency = measured.operation(name).getLatency();
+                if (latency.getCount() > 0) {
+                    Files.write(dir.resolve(name + ".hgrm"),
+                            latency.percentileDistribution(5).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            System.out.println("Wrote the distribution of every operation to " + dir.toAbsolutePath());
+        }
+    }
+
+    private void record(String operation, Outcome outcome, long nanos) {
+        ServerMetrics current = interval;
+        for (String name : new String[]{operation, ALL}) {
+            record(current.operation(name), outcome, nanos);
+            if (System.nanoTime() >= measureFrom) {
+                record(measured.operation(name), outcome, nanos);
+            }
+        }
+    }
+
+    private static void record(ServerMetrics.Operation op, Outcome outcome, long nanos) {
+        switch (outcome) {
+            case SUCCESS:
+                op.success(nanos);
+                break;
+            case NOT_AUTHENTICATED:
+                op.notAuthenticated(nanos);
+                break;
+            default:
+                op.failure(nanos);
+        }
+    }
+
+    private String pickOperation() {
+        int ticket = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (int i = 0; i < mixWeights.length; i++) {
+            if (ticket < mixWeights[i]) {
+                return mixOperations[i];
+            }
+        }
+        return mixOperations[mixOperations.length - 1];
+    }
+
+    private static String username(int user) {
+        return "load-user-" + user;
+    }
+
+    private static String password(int user) {
+        return "load-password-" + user;
+    }
+
+    private static Outcome classify(String result) {
+        if (Server.NOT_AUTHENTICATED.equals(result)) {
+            return Outcome.NOT_AUTHENTICATED;
+        }
+        return result == null || Server.SERVER_OFF.equals(result) ? Outcome.FAILURE : Outcome.SUCCESS;
+    }
+
+    /**
+     * One load thread, logged in as one of the load accounts
+     */
+    private final class Worker implements Runnable {
+        private final int index;
+        private final int user;
+        private String sessionKey;
+        private long lastJobId = 1;
+        private long calls;
+
+        Worker(int index) {
+            this.index = index;
+            this.user = index % users;
+            this.sessionKey = sessionKeys[user];
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long due;
+                if (openLoop) {
+                    due = startedAt + (long) (arrivals.getAndIncrement() * 1e9 / rate);
+                    if (due >= endAt) {
+                        return;
+                    }
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    due = System.nanoTime();
+                    if (due >= endAt) {
+                        return;
+                    }
+                }
+                call(pickOperation(), due);
+            }
+        }
+
+        private void call(String operation, long due) {
+            Outcome outcome;
+            try {
+                outcome = invoke(operation);
+            } catch (RemoteException e) {
+                error(e);
+                outcome = Outcome.FAILURE;
+            }
+            record(operation, outcome, System.nanoTime() - due);
+
+            if (outcome == Outcome.NOT_AUTHENTICATED) {
+                try {
+                    sessionKey = stub.authenticate(username(user), password(user));
+                } catch (RemoteException e) {
+                    error(e);
+                }
+            }
+        }
+
+        private Outcome invoke(String operation) throws RemoteException {
+            calls++;
+            switch (operation) {
+                case "register":
+                    String newUser = "load-" + runId + "-" + registered.incrementAndGet();
+                    return stub.register(newUser, password(user)) == null ? Outcome.FAILURE : Outcome.SUCCESS;
+                case "authenticate":
+                    String key = stub.authenticate(username(user), password(user));
+                    if (key == null) {
+                        return Outcome.FAILURE;
+                    }
+                    sessionKey = key;
+                    return Outcome.SUCCESS;
+                case "print":
+                    String printed = stub.print("load-" + index + "-" + calls + ".txt",
+                            "printer" + (1 + index % PRINTERS), sessionKey);
+                    int job = printed == null ? -1 : printed.lastIndexOf(" as job ");
+                    if (job >= 0) {
+                        lastJobId = Long.parseLong(printed.substring(job + 8, printed.length() - 1));
+                    }
+                    return classify(printed);
+                case "queue":
+                    String error = stub.queue(null, QUEUE_PAGE_SIZE, sessionKey).getError();
+                    return error == null ? Outcome.SUCCESS : classify(error);
+                case "topQueue":
+                    return classify(stub.topQueue((int) lastJobId, sessionKey));
+                case "readConfig":
+                    return classify(stub.readConfig(CONFIG_PARAMETER, sessionKey));
+                case "setConfig":
+                    return classify(stub.setConfig(CONFIG_PARAMETER, runId + "-" + calls, sessionKey));
+                default:
+                    throw new IllegalArgumentException(operation);
+            }
+        }
+
+        private void error(RemoteException e) {
+            errors.increment();
+            lastError = e.toString();
+        }
+    }
+
+    /**
+     * Runs a server in this JVM, bound in a registry of its own on the default port, with all of its files in a
+     * temporary directory. Properties already set on the command line win over the defaults set here.
+     */
+    private static void startEmbeddedServer() throws Exception {
+        Path dir = Files.createTempDirectory("rmi-auth-load");
+        setDefault("auth.userstore", "file");
+        setDefault("auth.userstore.file", dir.resolve("users.db").toString());
+        setDefault("auth.config.file", dir.resolve("config.db").toString());
+        setDefault("auth.queue.dir", dir.resolve("queue").toString());
+        setDefault("auth.audit.dir", dir.resolve("audit").toString());
+        setDefault("auth.hash.iterations", "10000");
+        setDefault("auth.ratelimit.enabled", "false");
+        setDefault("auth.autostart", "true");
+
+        Server server = new Server();
+        server.export(LocateRegistry.createRegistry(Registry.REGISTRY_PORT));
+        if (Boolean.getBoolean("auth.autostart")) {
+            System.out.println(server.start());
+        }
+        System.out.println("Embedded server running in " + dir);
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    public static void main(String[] args) {
+        // Every argument is a registry host; without arguments the local registry is used
+        List<String> hosts = args.length < 1 ? Collections.singletonList(null) : Arrays.asList(args);
+        try {
+            if (Boolean.getBoolean("auth.load.embedded")) {
+                startEmbeddedServer();
+            }
+            LoadGenerator generator = new LoadGenerator(ReplicaBalancer.connect(hosts, REPLICA_REFRESH_MILLIS),
+                    System.getProperty("auth.load.mix", DEFAULT_MIX));
+            generator.prepare();
+            generator.run();
+            generator.report();
+        } catch (Exception e) {
+            System.err.println("Load generator exception: " + e.toString());
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // RMI keeps non-daemon threads alive
+        System.exit(0);
+    }
+}
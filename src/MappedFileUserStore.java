@@ -0,0 +1,316 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Embedded UserStore keeping username -> (password, salt) records in a local memory-mapped file, so lookups need no
+ * database round trip.
+ *
+ * The file starts with a header (magic number, format version, record count, end of the last record) followed by
+ * records appended one after the other:
+ * [short username length][username bytes][byte password length][password][byte salt length][salt]
+ * [byte hash parameters length][hash parameters].
+ * The header is only updated after a record is fully written, so a crash mid-write leaves the file readable. An
+ * in-memory index from username to record offset is rebuilt on open by scanning the records. Updating a user appends
+ * a new record for it; the last record of a username wins. When the records replaced this way outnumber the live
+ * ones, the file is compacted on open: the live records are copied to a new file that is renamed over it. Doing so
+ * on open keeps the copy off the login path, which updates users when it upgrades their password hashes.
+ *
+ * Files of format version 1, whose records have no hash parameters, are rewritten in the current format on open.
+ */
+public class MappedFileUserStore implements UserStore {
+    /**
+     * Longest password hash a record holds, in bits: its length is stored in one byte
+     */
+    public static final int MAX_KEY_BITS = 255 * 8;
+
+    private static final int MAGIC = 0x55534552; // "USER"
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_HASH_PARAMS = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int COUNT_OFFSET = 8;
+    private static final int END_OFFSET = 12;
+    private static final int INITIAL_SIZE = 1 << 20;
+    private static final int COMPACT_MIN_STALE = 1024;
+
+    private final File path;
+    // replaced when the file grows or is compacted, so a lookup never reads an offset of one file in the other
+    private volatile Mapping mapping;
+    // guarded by this
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private int recordCount;
+    private int end;
+
+    /**
+     * Opens the store, creating the file if it does not exist yet
+     * @param path File
+     * @throws UserStoreException if the file cannot be opened or is not a user store
+     */
+    public MappedFileUserStore(File path) throws UserStoreException {
+        this.path = path;
+        try {
+            boolean exists = path.exists() && path.length() >= HEADER_SIZE;
+            if (exists) {
+                migrateIfNeeded(path);
+            }
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+            mapping = new Mapping(channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(channel.size(), INITIAL_SIZE)), new ConcurrentHashMap<>());
+            MappedByteBuffer buffer = mapping.buffer;
+
+            if (exists) {
+                load();
+                int stale = recordCount - mapping.index.size();
+                if (stale >= COMPACT_MIN_STALE && stale > mapping.index.size()) {
+                    compact();
+                }
+            } else {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(COUNT_OFFSET, 0);
+                buffer.putInt(END_OFFSET, HEADER_SIZE);
+                end = HEADER_SIZE;
+                buffer.force();
+            }
+        } catch (IOException e) {
+            throw new UserStoreException("Could not open user store file " + path, e);
+        }
+    }
+
+    @Override
+    public UserRecord find(String username) throws UserStoreException {
+        Mapping current = mapping;
+        Integer offset = current.index.get(username);
+        if (offset == null) {
+            return null;
+        }
+        return read(current.buffer.duplicate(), offset);
+    }
+
+    @Override
+    public synchronized boolean insert(UserRecord record) throws UserStoreException {
+        if (mapping.index.containsKey(record.getUsername())) {
+            return false;
+        }
+        append(record);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean update(UserRecord record) throws UserStoreException {
+        if (!mapping.index.containsKey(record.getUsername())) {
+            return false;
+        }
+        append(record);
+        return true;
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> consumer) {
+        mapping.index.keySet().forEach(consumer);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            mapping.buffer.force();
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return int Number of users in the store
+     */
+    public int size() {
+        return mapping.index.size();
+    }
+
+    /**
+     * Copies the live records to a new file, renames it over the store's file and switches to it. A crash at any
+     * point leaves one complete file behind.
+     * @throws UserStoreException if the new file cannot be written or opened
+     */
+    private void compact() throws UserStoreException {
+        Mapping current = mapping;
+        File compacted = new File(path.getPath() + ".compacting");
+        MappedFileUserStore replacement;
+        try {
+            Files.deleteIfExists(compacted.toPath());
+            MappedFileUserStore store = new MappedFileUserStore(compacted);
+            try {
+                ByteBuffer in = current.buffer.duplicate();
+                for (int offset : current.index.values()) {
+                    store.append(read(in, offset));
+                }
+            } finally {
+                store.close();
+            }
+
+            // the old mapping stays readable once its file is closed and replaced
+            channel.close();
+            file.close();
+            Files.move(compacted.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            replacement = new MappedFileUserStore(path);
+        } catch (IOException e) {
+            throw new UserStoreException("Could not compact user store file " + path, e);
+        }
+
+        System.out.println("Compacted " + path + " from " + recordCount + " to " + replacement.recordCount
+                + " records.");
+        file = replacement.file;
+        channel = replacement.channel;
+        recordCount = replacement.recordCount;
+        end = replacement.end;
+        mapping = replacement.mapping;
+    }
+
+    private void append(UserRecord record) throws UserStoreException {
+        byte[] name = record.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] password = record.getPassword();
+        byte[] salt = record.getSalt();
+        byte[] hashParams = record.getHashParams().encode().getBytes(StandardCharsets.UTF_8);
+        if (name.length > Short.MAX_VALUE || password.length > 255 || salt.length > 255 || hashParams.length > 255) {
+            throw new UserStoreException("User record for \"" + record.getUsername() + "\" is too large");
+        }
+
+        int size = 2 + name.length + 1 + password.length + 1 + salt.length + 1 + hashParams.length;
+        ensureCapacity(end + size);
+
+        int offset = end;
+        MappedByteBuffer buffer = mapping.buffer;
+        ByteBuffer out = buffer.duplicate();
+        out.position(offset);
+        out.putShort((short) name.length).put(name);
+        out.put((byte) password.length).put(password);
+        out.put((byte) salt.length).put(salt);
+        out.put((byte) hashParams.length).put(hashParams);
+
+        end += size;
+        recordCount++;
+        buffer.putInt(END_OFFSET, end);
+        buffer.putInt(COUNT_OFFSET, recordCount);
+        buffer.force();
+
+        mapping.index.put(record.getUsername(), offset);
+    }
+
+    private void load() throws UserStoreException {
+        MappedByteBuffer buffer = mapping.buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new UserStoreException("Not a user store file or unsupported version");
+        }
+        recordCount = buffer.getInt(COUNT_OFFSET);
+        end = buffer.getInt(END_OFFSET);
+
+        ByteBuffer in = buffer.duplicate();
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < recordCount; i++) {
+            in.position(offset);
+            byte[] name = new byte[in.getShort()];
+            in.get(name);
+            for (int field = 0; field < 3; field++) {
+                int length = in.get() & 0xFF;
+                in.position(in.position() + length);
+            }
+            mapping.index.put(new String(name, StandardCharsets.UTF_8), offset);
+            offset = in.position();
+        }
+    }
+
+    private UserRecord read(ByteBuffer in, int offset) {
+        return read(in, offset, true);
+    }
+
+    private static UserRecord read(ByteBuffer in, int offset, boolean withHashParams) {
+        in.position(offset);
+        byte[] name = new byte[in.getShort()];
+        in.get(name);
+        byte[] password = new byte[in.get() & 0xFF];
+        in.get(password);
+        byte[] salt = new byte[in.get() & 0xFF];
+        in.get(salt);
+        HashParams hashParams = HashParams.LEGACY;
+        if (withHashParams) {
+            byte[] encoded = new byte[in.get() & 0xFF];
+            in.get(encoded);
+            hashParams = HashParams.parse(new String(encoded, StandardCharsets.UTF_8));
+        }
+        return new UserRecord(new String(name, StandardCharsets.UTF_8), password, salt, hashParams);
+    }
+
+    /**
+     * Rewrites a format version 1 file in the current format, through a temporary file renamed over it
+     */
+    private static void migrateIfNeeded(File path) throws IOException, UserStoreException {
+        List<UserRecord> records = new ArrayList<>();
+        try (RandomAccessFile old = new RandomAccessFile(path, "r")) {
+            if (old.readInt() != MAGIC || old.readInt() != VERSION_WITHOUT_HASH_PARAMS) {
+                return;
+            }
+            ByteBuffer in = old.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, old.length());
+            int count = in.getInt(COUNT_OFFSET);
+            int offset = HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                records.add(read(in, offset, false));
+                offset = in.position();
+            }
+        }
+
+        File migrated = new File(path.getPath() + ".migrating");
+        Files.deleteIfExists(migrated.toPath());
+        MappedFileUserStore store = new MappedFileUserStore(migrated);
+        try {
+            for (UserRecord record : records) {
+                store.append(record);
+            }
+        } finally {
+            store.close();
+        }
+        Files.move(migrated.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Migrated " + records.size() + " users of " + path + " to store hash parameters.");
+    }
+
+    private void ensureCapacity(int required) throws UserStoreException {
+        MappedByteBuffer buffer = mapping.buffer;
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        long newSize = buffer.capacity();
+        while (newSize < required) {
+            newSize *= 2;
+        }
+        try {
+            buffer.force();
+            mapping = new Mapping(channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize), mapping.index);
+        } catch (IOException e) {
+            throw new UserStoreException("Could not grow user store file", e);
+        }
+    }
+
+    private static final class Mapping {
+        private final MappedByteBuffer buffer;
+        private final ConcurrentHashMap<String, Integer> index;
+
+        private Mapping(MappedByteBuffer buffer, ConcurrentHashMap<String, Integer> index) {
+            this.buffer = buffer;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.io.Serializable;
+
+/**
+ * Outcome of one operation of a batch() call: whether it succeeded, and the message the equivalent single call
+ * would have returned.
+ */
+public class OperationResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean ok;
+    private final String message;
+
+    public OperationResult(boolean ok, String message) {
+        this.ok = ok;
+        this.message = message;
+    }
+
+    public static OperationResult ok(String message) {
+        return new OperationResult(true, message);
+    }
+
+    public static OperationResult failed(String message) {
+        return new OperationResult(false, message);
+    }
+
+    public boolean isOk() {
+        return ok;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return (ok ? "OK: " : "FAILED: ") + message;
+    }
+}
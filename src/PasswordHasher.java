@@ -0,0 +1,112 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password encryption primitives shared by single and batch registration and by authentication.
+ */
+public final class PasswordHasher {
+
+    private static final int CALIBRATION_ITERATIONS = 10000;
+    private static final long CALIBRATION_WARMUP_MILLIS = 1000;
+    private static final int CALIBRATION_SAMPLES = 9;
+    private static final long MAX_ITERATIONS = 10000000;
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<>();
+
+    private PasswordHasher() {
+    }
+
+    /**
+     * Encrypts a string password into bytes on the calling thread, with the parameters of hashes stored before they
+     * were recorded per user
+     * @param pswd String
+     * @param salt byte[]
+     * @return byte[]
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     */
+    public static byte[] derive(String pswd, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return derive(pswd, salt, HashParams.LEGACY);
+    }
+
+    /**
+     * Encrypts a string password into bytes on the calling thread. PBKDF2 with HMAC-SHA1 or HMAC-SHA256 runs on the
+     * thread's Pbkdf2Engine; any other algorithm goes through SecretKeyFactory.
+     * @param pswd String
+     * @param salt byte[]
+     * @param params HashParams
+     * @return byte[]
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     */
+    public static byte[] derive(String pswd, byte[] salt, HashParams params)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        if (Pbkdf2Engine.supports(params.getAlgorithm())) {
+            return Pbkdf2Engine.forCurrentThread().derive(params.getAlgorithm(), pswd, salt, params.getIterations(),
+                    params.getKeyBits());
+        }
+        KeySpec spec = new PBEKeySpec(pswd.toCharArray(), salt, params.getIterations(), params.getKeyBits());
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(params.getAlgorithm());
+
+        return factory.generateSecret(spec).getEncoded();
+    }
+
+    /**
+     * Measures how long a derivation takes on this machine and picks the iteration count that makes one take about
+     * the target time, never fewer than the legacy 10,000 iterations
+     * @param algorithm String
+     * @param keyBits int
+     * @param targetMillis long Time budget of one derivation
+     * @return HashParams
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     */
+    public static HashParams calibrate(String algorithm, int keyBits, long targetMillis)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        HashParams probe = new HashParams(algorithm, CALIBRATION_ITERATIONS, keyBits);
+        byte[] salt = generateSalt();
+        // The first rounds run before the JIT has fully compiled the HMAC code and are several times slower, with a
+        // plateau in between, so the measured rounds only start after a fixed warm-up; their median ignores outliers
+        long warmUpEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CALIBRATION_WARMUP_MILLIS);
+        while (System.nanoTime() < warmUpEnd) {
+            derive("calibration", salt, probe);
+        }
+        long[] samples = new long[CALIBRATION_SAMPLES];
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            derive("calibration", salt, probe);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        long median = samples[samples.length / 2];
+
+        long iterations = CALIBRATION_ITERATIONS * TimeUnit.MILLISECONDS.toNanos(targetMillis) / Math.max(1, median);
+        iterations = iterations / 1000 * 1000;
+        iterations = Math.max(HashParams.LEGACY.getIterations(), Math.min(MAX_ITERATIONS, iterations));
+        return new HashParams(algorithm, (int) iterations, keyBits);
+    }
+
+    /**
+     * Generates a random byte array, from a generator kept per thread so concurrent registrations do not contend
+     * on one
+     * @return byte[]
+     * @throws NoSuchAlgorithmException
+     */
+    public static byte[] generateSalt() throws NoSuchAlgorithmException {
+        SecureRandom random = RANDOM.get();
+        if (random == null) {
+            random = SecureRandom.getInstance("SHA1PRNG");
+            RANDOM.set(random);
+        }
+
+        byte[] salt = new byte[8];
+        random.nextBytes(salt);
+
+        return salt;
+    }
+}
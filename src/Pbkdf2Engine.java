@@ -0,0 +1,485 @@
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * PBKDF2 (RFC 8018) with HMAC-SHA1 or HMAC-SHA256 on reusable per-thread state instead of through SecretKeyFactory.
+ * The HMAC key is applied once per password: the hash state after the inner and outer pad blocks is kept, so every
+ * iteration costs two compressions instead of the four a javax.crypto.Mac spends re-hashing the pads.
+ *
+ * The state is kept in one of two ways, picked by "auth.hash.engine":
+ * "portable" runs the compression function written out below on int arrays allocated once per thread, so the loop
+ * allocates nothing; "digest" clones MessageDigest objects holding the pad states, which allocates a few hundred
+ * bytes per iteration but lets the JVM use the CPU's SHA instructions; "auto" (the default) uses "digest" where the
+ * JVM runs with -XX:+UseSHA and "portable" otherwise, whichever is faster there.
+ *
+ * The derived keys are byte-identical to those of the JCA "PBKDF2WithHmacSHA1" and "PBKDF2WithHmacSHA256"
+ * implementations; other algorithms are not supported here.
+ */
+public final class Pbkdf2Engine {
+    private static final int BLOCK_BYTES = 64;
+    private static final String MODE = System.getProperty("auth.hash.engine", "auto");
+    private static final boolean USE_DIGEST = useDigest();
+    private static final ThreadLocal<Pbkdf2Engine> ENGINES = ThreadLocal.withInitial(Pbkdf2Engine::new);
+
+    private final Digest sha1 = new Sha1();
+    private final Digest sha256 = new Sha256();
+    private MessageDigest sha1Digest;
+    private MessageDigest sha256Digest;
+
+    private final int[] inner = new int[8];
+    private final int[] outer = new int[8];
+    private final int[] state = new int[8];
+    private final int[] sum = new int[8];
+    private final int[] block = new int[16];
+    private final byte[] buffer = new byte[BLOCK_BYTES];
+    private Digest digest;
+    private int bufferPos;
+    private long messageLength;
+
+    private Pbkdf2Engine() {
+    }
+
+    /**
+     * @param algorithm String A SecretKeyFactory algorithm name, e.g. "PBKDF2WithHmacSHA1"
+     * @return True/False
+     */
+    public static boolean supports(String algorithm) {
+        return isSha1(algorithm) || isSha256(algorithm);
+    }
+
+    /**
+     * @return String "digest" or "portable", the way keys are derived on this JVM
+     */
+    public static String describe() {
+        return USE_DIGEST ? "digest" : "portable";
+    }
+
+    /**
+     * @return Pbkdf2Engine The engine of the calling thread; it must not be handed to other threads
+     */
+    public static Pbkdf2Engine forCurrentThread() {
+        return ENGINES.get();
+    }
+
+    /**
+     * Derives a key the way SecretKeyFactory does for a PBEKeySpec of the same arguments: the password is encoded
+     * as UTF-8 and the key is keyBits rounded down to whole bytes
+     * @param algorithm String One for which supports() is true
+     * @param pswd String
+     * @param salt byte[]
+     * @param iterations int
+     * @param keyBits int
+     * @return byte[] The derived key
+     * @throws NoSuchAlgorithmException if the digest of the algorithm is missing
+     */
+    public byte[] derive(String algorithm, String pswd, byte[] salt, int iterations, int keyBits)
+            throws NoSuchAlgorithmException {
+        if (salt == null || salt.length == 0) {
+            throw new IllegalArgumentException("the salt parameter must be non-null and not empty");
+        }
+        if (iterations <= 0 || keyBits <= 0) {
+            throw new IllegalArgumentException("Invalid iterations or key length " + iterations + ":" + keyBits);
+        }
+
+        byte[] password = pswd.getBytes(StandardCharsets.UTF_8);
+        byte[] key = new byte[keyBits / 8];
+        try {
+            if (USE_DIGEST) {
+                deriveWithDigest(messageDigest(algorithm), password, salt, iterations, key);
+            } else {
+                digest = isSha256(algorithm) ? sha256 : sha1;
+                deriveWithCompression(password, salt, iterations, key);
+            }
+        } finally {
+            Arrays.fill(password, (byte) 0);
+        }
+        return key;
+    }
+
+    private void deriveWithCompression(byte[] password, byte[] salt, int iterations, byte[] key) {
+        setKey(password);
+        int words = digest.words;
+        for (int blockIndex = 1, offset = 0; offset < key.length; blockIndex++, offset += words * 4) {
+            // U_1 = HMAC(password, salt || INT(blockIndex))
+            start(inner, BLOCK_BYTES);
+            update(salt);
+            update((byte) (blockIndex >>> 24));
+            update((byte) (blockIndex >>> 16));
+            update((byte) (blockIndex >>> 8));
+            update((byte) blockIndex);
+            finish();
+            padShortMessage(words);
+            compressShortMessage(outer);
+            System.arraycopy(state, 0, sum, 0, words);
+
+            // U_j = HMAC(password, U_j-1): both halves hash one digest-length message, so the padded block is
+            // already in place and only its first words change
+            for (int j = 1; j < iterations; j++) {
+                compressShortMessage(inner);
+                compressShortMessage(outer);
+                for (int w = 0; w < words; w++) {
+                    sum[w] ^= state[w];
+                }
+            }
+
+            for (int i = 0; i < words * 4 && offset + i < key.length; i++) {
+                key[offset + i] = (byte) (sum[i >>> 2] >>> (24 - 8 * (i & 3)));
+            }
+        }
+        Arrays.fill(inner, 0);
+        Arrays.fill(outer, 0);
+    }
+
+    private static void deriveWithDigest(MessageDigest md, byte[] password, byte[] salt, int iterations,
+                                         byte[] key) {
+        byte[] pad = password.length > BLOCK_BYTES ? md.digest(password) : password;
+        byte[] block = new byte[BLOCK_BYTES];
+        for (int i = 0; i < BLOCK_BYTES; i++) {
+            block[i] = (byte) ((i < pad.length ? pad[i] : 0) ^ 0x36);
+        }
+        md.reset();
+        md.update(block);
+        MessageDigest inner = copy(md);
+        for (int i = 0; i < BLOCK_BYTES; i++) {
+            block[i] ^= 0x36 ^ 0x5c;
+        }
+        md.reset();
+        md.update(block);
+        MessageDigest outer = copy(md);
+        md.reset();
+        Arrays.fill(block, (byte) 0);
+        if (pad != password) {
+            Arrays.fill(pad, (byte) 0);
+        }
+
+        int length = md.getDigestLength();
+        byte[] u = new byte[length];
+        byte[] sum = new byte[length];
+        byte[] index = new byte[4];
+        for (int blockIndex = 1, offset = 0; offset < key.length; blockIndex++, offset += length) {
+            index[0] = (byte) (blockIndex >>> 24);
+            index[1] = (byte) (blockIndex >>> 16);
+            index[2] = (byte) (blockIndex >>> 8);
+            index[3] = (byte) blockIndex;
+            MessageDigest first = copy(inner);
+            first.update(salt);
+            first.update(index);
+            hmacFinish(first, outer, u);
+            System.arraycopy(u, 0, sum, 0, length);
+
+            for (int j = 1; j < iterations; j++) {
+                MessageDigest next = copy(inner);
+                next.update(u);
+                hmacFinish(next, outer, u);
+                for (int i = 0; i < length; i++) {
+                    sum[i] ^= u[i];
+                }
+            }
+            System.arraycopy(sum, 0, key, offset, Math.min(length, key.length - offset));
+        }
+    }
+
+    /**
+     * Completes the inner hash into u, then hashes it continuing from the outer pad state, again into u
+     */
+    private static void hmacFinish(MessageDigest inner, MessageDigest outerPad, byte[] u) {
+        try {
+            inner.digest(u, 0, u.length);
+            MessageDigest outer = copy(outerPad);
+            outer.update(u);
+            outer.digest(u, 0, u.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest md) {
+        try {
+            return (MessageDigest) md.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(md.getAlgorithm() + " digests cannot be cloned", e);
+        }
+    }
+
+    private MessageDigest messageDigest(String algorithm) throws NoSuchAlgorithmException {
+        if (isSha256(algorithm)) {
+            if (sha256Digest == null) {
+                sha256Digest = MessageDigest.getInstance("SHA-256");
+            }
+            return sha256Digest;
+        }
+        if (sha1Digest == null) {
+            sha1Digest = MessageDigest.getInstance("SHA-1");
+        }
+        return sha1Digest;
+    }
+
+    private static boolean isSha1(String algorithm) {
+        return "PBKDF2WithHmacSHA1".equalsIgnoreCase(algorithm);
+    }
+
+    private static boolean isSha256(String algorithm) {
+        return "PBKDF2WithHmacSHA256".equalsIgnoreCase(algorithm);
+    }
+
+    private static boolean useDigest() {
+        if ("digest".equals(MODE)) {
+            return true;
+        }
+        if ("portable".equals(MODE)) {
+            return false;
+        }
+        try {
+            HotSpotDiagnosticMXBean vm = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return Boolean.parseBoolean(vm.getVMOption("UseSHA").getValue());
+        } catch (RuntimeException e) {
+            // not a HotSpot JVM, or one without the flag
+            return false;
+        }
+    }
+
+    /**
+     * Runs the key through the inner and outer pad blocks and keeps the chaining values
+     */
+    private void setKey(byte[] password) {
+        byte[] key = password;
+        if (key.length > BLOCK_BYTES) {
+            digest.reset(state);
+            bufferPos = 0;
+            messageLength = 0;
+            update(key);
+            finish();
+            key = new byte[digest.words * 4];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = (byte) (state[i >>> 2] >>> (24 - 8 * (i & 3)));
+            }
+        }
+        padKey(key, (byte) 0x36, inner);
+        padKey(key, (byte) 0x5c, outer);
+        if (key != password) {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private void padKey(byte[] key, byte pad, int[] chain) {
+        digest.reset(state);
+        bufferPos = 0;
+        messageLength = 0;
+        for (int i = 0; i < BLOCK_BYTES; i++) {
+            update((byte) ((i < key.length ? key[i] : 0) ^ pad));
+        }
+        System.arraycopy(state, 0, chain, 0, digest.words);
+    }
+
+    /**
+     * Lays out the padding of a message that is exactly one digest long, which every message after the first is
+     */
+    private void padShortMessage(int words) {
+        block[words] = 0x80000000;
+        Arrays.fill(block, words + 1, 15, 0);
+        block[15] = (BLOCK_BYTES + words * 4) * 8;
+    }
+
+    /**
+     * Hashes the digest in state, continuing from the given pad chaining value, and leaves the result in state
+     */
+    private void compressShortMessage(int[] chain) {
+        int words = digest.words;
+        System.arraycopy(state, 0, block, 0, words);
+        System.arraycopy(chain, 0, state, 0, words);
+        digest.compress(state, block);
+    }
+
+    private void start(int[] chain, long processed) {
+        System.arraycopy(chain, 0, state, 0, chain.length);
+        bufferPos = 0;
+        messageLength = processed;
+    }
+
+    private void update(byte[] data) {
+        for (byte b : data) {
+            update(b);
+        }
+    }
+
+    private void update(byte b) {
+        buffer[bufferPos++] = b;
+        messageLength++;
+        if (bufferPos == BLOCK_BYTES) {
+            for (int i = 0; i < 16; i++) {
+                block[i] = (buffer[4 * i] & 0xff) << 24 | (buffer[4 * i + 1] & 0xff) << 16
+                        | (buffer[4 * i + 2] & 0xff) << 8 | (buffer[4 * i + 3] & 0xff);
+            }
+            bufferPos = 0;
+            digest.compress(state, block);
+        }
+    }
+
+    private void finish() {
+        long bits = messageLength * 8;
+        update((byte) 0x80);
+        while (bufferPos != BLOCK_BYTES - 8) {
+            update((byte) 0);
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            update((byte) (bits >>> shift));
+        }
+    }
+
+    /**
+     * A Merkle-Damgard hash with 64-byte blocks and big-endian 32-bit words
+     */
+    private abstract static class Digest {
+        final int words;
+
+        Digest(int words) {
+            this.words = words;
+        }
+
+        abstract void reset(int[] state);
+
+        /**
+         * @param state int[] Chaining value, updated in place
+         * @param block int[] 16 message words, left untouched
+         */
+        abstract void compress(int[] state, int[] block);
+    }
+
+    private static final class Sha1 extends Digest {
+        private final int[] w = new int[80];
+
+        Sha1() {
+            super(5);
+        }
+
+        @Override
+        void reset(int[] state) {
+            state[0] = 0x67452301;
+            state[1] = 0xefcdab89;
+            state[2] = 0x98badcfe;
+            state[3] = 0x10325476;
+            state[4] = 0xc3d2e1f0;
+        }
+
+        @Override
+        void compress(int[] state, int[] block) {
+            int[] w = this.w;
+            System.arraycopy(block, 0, w, 0, 16);
+            for (int i = 16; i < 80; i++) {
+                w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+            }
+
+            int a = state[0], b = state[1], c = state[2], d = state[3], e = state[4];
+            for (int i = 0; i < 20; i++) {
+                int t = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + w[i] + 0x5a827999;
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = t;
+            }
+            for (int i = 20; i < 40; i++) {
+                int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[i] + 0x6ed9eba1;
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = t;
+            }
+            for (int i = 40; i < 60; i++) {
+                int t = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + w[i] + 0x8f1bbcdc;
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = t;
+            }
+            for (int i = 60; i < 80; i++) {
+                int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[i] + 0xca62c1d6;
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = t;
+            }
+            state[0] += a;
+            state[1] += b;
+            state[2] += c;
+            state[3] += d;
+            state[4] += e;
+        }
+    }
+
+    private static final class Sha256 extends Digest {
+        private static final int[] K = {
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+                0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+                0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+                0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+                0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+                0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        };
+
+        private final int[] w = new int[64];
+
+        Sha256() {
+            super(8);
+        }
+
+        @Override
+        void reset(int[] state) {
+            state[0] = 0x6a09e667;
+            state[1] = 0xbb67ae85;
+            state[2] = 0x3c6ef372;
+            state[3] = 0xa54ff53a;
+            state[4] = 0x510e527f;
+            state[5] = 0x9b05688c;
+            state[6] = 0x1f83d9ab;
+            state[7] = 0x5be0cd19;
+        }
+
+        @Override
+        void compress(int[] state, int[] block) {
+            int[] w = this.w;
+            System.arraycopy(block, 0, w, 0, 16);
+            for (int i = 16; i < 64; i++) {
+                int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+
+            int a = state[0], b = state[1], c = state[2], d = state[3];
+            int e = state[4], f = state[5], g = state[6], h = state[7];
+            for (int i = 0; i < 64; i++) {
+                int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                        + ((e & f) ^ (~e & g)) + K[i] + w[i];
+                int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                        + ((a & b) ^ (a & c) ^ (b & c));
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            state[0] += a;
+            state[1] += b;
+            state[2] += c;
+            state[3] += d;
+            state[4] += e;
+            state[5] += f;
+            state[6] += g;
+            state[7] += h;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * AuditSink storing events in the "audit_log" table of the Postgres database, created if missing. A batch is written
+ * with multi-row INSERT statements of up to ROWS_PER_INSERT rows each, so the table takes one round trip and one
+ * commit per few hundred events. The sink has a connection pool of its own, so a burst of events never holds up
+ * logins waiting for a connection.
+ *
+ * Client-supplied fields are fitted to the table: usernames and hosts are cut to the width of their columns and NUL
+ * characters, which Postgres refuses in text, are dropped. Should a multi-row INSERT still fail on its data, its rows
+ * are inserted one by one and only the rows the table refuses are skipped, so one bad event cannot take the events
+ * of its batch down with it.
+ */
+public class PostgresAuditSink implements AuditSink {
+    private static final int ROWS_PER_INSERT = 500;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final String HAS_TABLE_SQL =
+            "SELECT 1 FROM information_schema.tables WHERE table_name='audit_log'";
+    private static final String CREATE_TABLE_SQL = "CREATE TABLE audit_log ("
+            + "id BIGSERIAL PRIMARY KEY, at TIMESTAMP WITH TIME ZONE NOT NULL, type VARCHAR(16) NOT NULL, "
+            + "outcome VARCHAR(32) NOT NULL, username VARCHAR(255), host VARCHAR(255), detail TEXT)";
+    private static final String CREATE_INDEX_SQL =
+            "CREATE INDEX audit_log_username_at ON audit_log(username, at)";
+    private static final String INSERT_SQL = "INSERT INTO audit_log(at, type, outcome, username, host, detail) VALUES ";
+    private static final String ROW = "(?, ?, ?, ?, ?, ?)";
+
+    private final ConnectionPool connectionPool;
+    private final String fullInsertSql = insertSql(ROWS_PER_INSERT);
+    // only updated by the audit writer
+    private volatile long rejectedRows;
+
+    /**
+     * @param connectionPool ConnectionPool
+     * @throws SQLException if the "audit_log" table cannot be created
+     */
+    public PostgresAuditSink(ConnectionPool connectionPool) throws SQLException {
+        this.connectionPool = connectionPool;
+        Connection connection = connectionPool.borrow();
+        try (Statement stmt = connection.createStatement()) {
+            boolean exists;
+            try (ResultSet rs = stmt.executeQuery(HAS_TABLE_SQL)) {
+                exists = rs.next();
+            }
+            if (!exists) {
+                stmt.executeUpdate(CREATE_TABLE_SQL);
+                stmt.executeUpdate(CREATE_INDEX_SQL);
+                System.out.println("Created the audit_log table.");
+            }
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    @Override
+    public void write(List<AuditEvent> events) throws IOException {
+        Connection connection = null;
+        try {
+            connection = connectionPool.borrow();
+            for (int from = 0; from < events.size(); from += ROWS_PER_INSERT) {
+                int rows = Math.min(ROWS_PER_INSERT, events.size() - from);
+                List<AuditEvent> chunk = events.subList(from, from + rows);
+                try (PreparedStatement stmt = connection.prepareStatement(rows == ROWS_PER_INSERT ? fullInsertSql
+                        : insertSql(rows))) {
+                    int parameter = 1;
+                    for (AuditEvent event : chunk) {
+                        parameter = setRow(stmt, parameter, event);
+                    }
+                    stmt.executeUpdate();
+                } catch (SQLException e) {
+                    if (!isDataError(e)) {
+                        throw e;
+                    }
+                    insertOneByOne(connection, chunk);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not store " + events.size() + " audit events", e);
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+
+    @Override
+    public String toString() {
+        long rejected = rejectedRows;
+        return rejected == 0 ? "audit_log table" : "audit_log table (" + rejected + " rows rejected)";
+    }
+
+    /**
+     * Inserts the rows of a chunk the table refused as a whole one at a time, skipping those it refuses on their own
+     * @throws SQLException if a row fails for another reason than its data, e.g. the connection broke
+     */
+    private void insertOneByOne(Connection connection, List<AuditEvent> chunk) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(insertSql(1))) {
+            for (AuditEvent event : chunk) {
+                setRow(stmt, 1, event);
+                try {
+                    stmt.executeUpdate();
+                } catch (SQLException e) {
+                    if (!isDataError(e)) {
+                        throw e;
+                    }
+                    // counted, and shown with the audit log's stats
+                    rejectedRows++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return int The index of the parameter after the row
+     */
+    private static int setRow(PreparedStatement stmt, int parameter, AuditEvent event) throws SQLException {
+        stmt.setTimestamp(parameter++, new Timestamp(event.getTimeMillis()));
+        stmt.setString(parameter++, event.getType().name());
+        stmt.setString(parameter++, event.getOutcome());
+        stmt.setString(parameter++, fit(event.getUsername(), MAX_NAME_LENGTH));
+        stmt.setString(parameter++, fit(event.getHost(), MAX_NAME_LENGTH));
+        stmt.setString(parameter++, fit(event.getDetail(), Integer.MAX_VALUE));
+        return parameter;
+    }
+
+    /**
+     * @param value String
+     * @param maxLength int
+     * @return String The value without NUL characters, cut to maxLength characters without splitting a surrogate
+     * pair, or null if the value is null
+     */
+    private static String fit(String value, int maxLength) {
+        if (value == null) {
+            return null;
+        }
+        String text = value.indexOf('\0') < 0 ? value : value.replace("\0", "");
+        if (text.length() <= maxLength) {
+            return text;
+        }
+        int end = Character.isHighSurrogate(text.charAt(maxLength - 1)) ? maxLength - 1 : maxLength;
+        return text.substring(0, end);
+    }
+
+    /**
+     * @return True/False True if Postgres refused the data of a row (SQLSTATE class 22 or 23), not the statement
+     * or the connection
+     */
+    private static boolean isDataError(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    private static String insertSql(int rows) {
+        StringBuilder sql = new StringBuilder(INSERT_SQL.length() + rows * (ROW.length() + 2)).append(INSERT_SQL);
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ", ").append(ROW);
+        }
+        return sql.toString();
+    }
+}
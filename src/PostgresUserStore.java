@@ -0,0 +1,234 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * UserStore backed by the "users" table of the Postgres database, accessed through a ConnectionPool.
+ */
+public class PostgresUserStore implements UserStore {
+    private static final String SELECT_SQL = "SELECT password, salt, hash_params FROM users WHERE username=?";
+    private static final String SELECT_EXISTING_SQL = "SELECT username FROM users WHERE username = ANY(?)";
+    private static final String SELECT_USERNAMES_SQL = "SELECT username FROM users";
+    private static final int STREAM_FETCH_SIZE = 1000;
+    private static final String INSERT_SQL =
+            "INSERT INTO users(username, password, salt, hash_params) VALUES (?, ?, ?, ?)";
+    private static final String UPDATE_SQL = "UPDATE users SET password=?, salt=?, hash_params=? WHERE username=?";
+    private static final String HAS_HASH_PARAMS_SQL = "SELECT 1 FROM information_schema.columns "
+            + "WHERE table_name='users' AND column_name='hash_params'";
+    private static final String ADD_HASH_PARAMS_SQL = "ALTER TABLE users ADD COLUMN hash_params VARCHAR(64)";
+
+    private final ConnectionPool connectionPool;
+
+    /**
+     * @param connectionPool ConnectionPool
+     * @throws UserStoreException if the "hash_params" column is missing and cannot be added
+     */
+    public PostgresUserStore(ConnectionPool connectionPool) throws UserStoreException {
+        this.connectionPool = connectionPool;
+        ensureHashParamsColumn();
+    }
+
+    @Override
+    public UserRecord find(String username) throws UserStoreException {
+        Connection connection = null;
+        try {
+            connection = connectionPool.borrow();
+            return find(connection, username);
+        } catch (SQLException e) {
+            throw new UserStoreException("Could not fetch user \"" + username + "\"", e);
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    @Override
+    public boolean insert(UserRecord record) throws UserStoreException {
+        Connection connection = null;
+        try {
+            connection = connectionPool.borrow();
+            if (find(connection, record.getUsername()) != null) {
+                return false;
+            }
+
+            try (PreparedStatement stmt = connection.prepareStatement(INSERT_SQL)) {
+                stmt.setString(1, record.getUsername());
+                stmt.setBytes(2, record.getPassword());
+                stmt.setBytes(3, record.getSalt());
+                stmt.setString(4, record.getHashParams().encode());
+                stmt.executeUpdate();
+            }
+            return true;
+        } catch (SQLException e) {
+            throw new UserStoreException("Could not store user \"" + record.getUsername() + "\"", e);
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    @Override
+    public boolean update(UserRecord record) throws UserStoreException {
+        Connection connection = null;
+        try {
+            connection = connectionPool.borrow();
+            try (PreparedStatement stmt = connection.prepareStatement(UPDATE_SQL)) {
+                stmt.setBytes(1, record.getPassword());
+                stmt.setBytes(2, record.getSalt());
+                stmt.setString(3, record.getHashParams().encode());
+                stmt.setString(4, record.getUsername());
+                return stmt.executeUpdate() > 0;
+            }
+        } catch (SQLException e) {
+            throw new UserStoreException("Could not update user \"" + record.getUsername() + "\"", e);
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    /**
+     * Stores the records in one transaction with a single JDBC batch insert, after filtering out usernames that are
+     * already taken with a single query.
+     */
+    @Override
+    public boolean[] insertBatch(List<UserRecord> records) throws UserStoreException {
+        boolean[] inserted = new boolean[records.size()];
+        if (records.isEmpty()) {
+            return inserted;
+        }
+
+        Connection connection = null;
+        try {
+            connection = connectionPool.borrow();
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                Set<String> existing = findExisting(connection, records);
+                try (PreparedStatement stmt = connection.prepareStatement(INSERT_SQL)) {
+                    for (int i = 0; i < records.size(); i++) {
+                        UserRecord record = records.get(i);
+                        if (existing.contains(record.getUsername())) {
+                            continue;
+                        }
+                        stmt.setString(1, record.getUsername());
+                        stmt.setBytes(2, record.getPassword());
+                        stmt.setBytes(3, record.getSalt());
+                        stmt.setString(4, record.getHashParams().encode());
+                        stmt.addBatch();
+                        inserted[i] = true;
+                    }
+                    stmt.executeBatch();
+                }
+                connection.commit();
+                return inserted;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new UserStoreException("Could not store a batch of " + records.size() + " users", e);
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> consumer) throws UserStoreException {
+        Connection connection = null;
+        try {
+            connection = connectionPool.borrow();
+            // the driver only streams rows with a cursor, which needs a transaction
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement stmt = connection.prepareStatement(SELECT_USERNAMES_SQL)) {
+                stmt.setFetchSize(STREAM_FETCH_SIZE);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        consumer.accept(rs.getString(1));
+                    }
+                }
+            } finally {
+                connection.commit();
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new UserStoreException("Could not list users", e);
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+
+    /**
+     * @return ConnectionPool The pool this store runs its queries on
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Adds the "hash_params" column to a users table created before hash parameters were stored per user. Its rows
+     * keep a NULL value, read as HashParams.LEGACY.
+     */
+    private void ensureHashParamsColumn() throws UserStoreException {
+        Connection connection = null;
+        try {
+            connection = connectionPool.borrow();
+            try (Statement stmt = connection.createStatement()) {
+                boolean exists;
+                try (ResultSet rs = stmt.executeQuery(HAS_HASH_PARAMS_SQL)) {
+                    exists = rs.next();
+                }
+                if (!exists) {
+                    stmt.executeUpdate(ADD_HASH_PARAMS_SQL);
+                    System.out.println("Added the hash_params column to the users table.");
+                }
+            }
+        } catch (SQLException e) {
+            throw new UserStoreException("Could not add the hash_params column to the users table", e);
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    private Set<String> findExisting(Connection connection, List<UserRecord> records) throws SQLException {
+        String[] usernames = new String[records.size()];
+        for (int i = 0; i < usernames.length; i++) {
+            usernames[i] = records.get(i).getUsername();
+        }
+
+        Set<String> existing = new HashSet<>();
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_EXISTING_SQL)) {
+            stmt.setArray(1, connection.createArrayOf("varchar", usernames));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getString(1));
+                }
+            }
+        }
+        return existing;
+    }
+
+    private UserRecord find(Connection connection, String username) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_SQL)) {
+            stmt.setString(1, username);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return new UserRecord(username, rs.getBytes("password"), rs.getBytes("salt"),
+                        HashParams.parse(rs.getString("hash_params")));
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.Serializable;
+
+/**
+ * A file waiting on the print queue. The job ID is assigned once when the job is queued and never changes, no matter
+ * how the queue is reordered.
+ */
+public class PrintJob implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final String filename;
+    private final String owner;
+    private final String printer;
+    private final int priority;
+    private final long rank;
+
+    public PrintJob(long id, String filename, String owner, String printer, int priority, long rank) {
+        this.id = id;
+        this.filename = filename;
+        this.owner = owner;
+        this.printer = printer;
+        this.priority = priority;
+        this.rank = rank;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getPrinter() {
+        return printer;
+    }
+
+    /**
+     * @return int Jobs with a higher priority are printed first
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return long Position among jobs of the same priority, lower ranks are printed first
+     */
+    public long getRank() {
+        return rank;
+    }
+
+    /**
+     * @param newPriority int
+     * @param newRank long
+     * @return PrintJob A copy of this job with the same ID at a new place in the queue
+     */
+    PrintJob reposition(int newPriority, long newRank) {
+        return new PrintJob(id, filename, owner, printer, newPriority, newRank);
+    }
+}
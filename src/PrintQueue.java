@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe print queue ordered by priority and then by arrival. Jobs are kept in a skip list, so enqueue, dequeue
+ * and move-to-top are O(log n), and indexed by their stable job ID. Mutations are serialized so that the skip list
+ * and the index never disagree; iteration is lock-free and weakly consistent.
+ *
+ * With a QueueJournal the queue is durable: every mutation is logged while the lock is held, so the log has the same
+ * order as the queue, and the caller then waits for the log to reach the disk after releasing the lock, so
+ * concurrent callers share a group commit.
+ */
+public class PrintQueue implements Iterable<PrintJob> {
+    private static final Comparator<PrintJob> ORDER = Comparator
+            .comparingInt(PrintJob::getPriority).reversed()
+            .thenComparingLong(PrintJob::getRank);
+
+    private final ConcurrentSkipListSet<PrintJob> ordered = new ConcurrentSkipListSet<>(ORDER);
+    private final ConcurrentHashMap<Long, PrintJob> byId = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicLong headRank = new AtomicLong(0);
+    private final AtomicLong tailRank = new AtomicLong(0);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final QueueJournal journal;
+
+    /**
+     * Creates an in-memory queue
+     */
+    public PrintQueue() {
+        this(null);
+    }
+
+    /**
+     * Creates a queue holding the jobs recovered by a journal and logging every change to it
+     * @param journal QueueJournal The journal, or null for an in-memory queue
+     */
+    public PrintQueue(QueueJournal journal) {
+        this.journal = journal;
+        if (journal != null) {
+            for (PrintJob job : journal.getRecoveredJobs()) {
+                ordered.add(job);
+                byId.put(job.getId(), job);
+                headRank.set(Math.min(headRank.get(), job.getRank()));
+                tailRank.set(Math.max(tailRank.get(), job.getRank()));
+            }
+            nextId.set(journal.getRecoveredNextId());
+            journal.setCheckpointTask(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    System.out.println("Could not checkpoint the print queue: " + e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Appends a job behind every job of the same or higher priority
+     * @param filename String
+     * @param owner String
+     * @param printer String
+     * @param priority int
+     * @return PrintJob The queued job with its assigned ID
+     * @throws UncheckedIOException if the job could not be logged; it is not queued then
+     */
+    public PrintJob enqueue(String filename, String owner, String printer, int priority) {
+        PrintJob job;
+        long seq = 0;
+        lock.lock();
+        try {
+            job = new PrintJob(nextId.getAndIncrement(), filename, owner, printer, priority,
+                    tailRank.incrementAndGet());
+            if (journal != null) {
+                seq = journal.appendEnqueue(job);
+            }
+            ordered.add(job);
+            byId.put(job.getId(), job);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            awaitDurable(seq);
+        } catch (UncheckedIOException e) {
+            // the caller reports the job as failed and never schedules it, so it must not stay queued either
+            lock.lock();
+            try {
+                PrintJob current = byId.remove(job.getId());
+                if (current != null) {
+                    ordered.remove(current);
+                }
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Removes and returns the job at the top of the queue
+     * @return PrintJob The removed job, or null if the queue is empty
+     */
+    public PrintJob dequeue() {
+        PrintJob job;
+        long seq = 0;
+        lock.lock();
+        try {
+            job = peek();
+            if (job == null) {
+                return null;
+            }
+            if (journal != null) {
+                seq = journal.appendRemove(job.getId());
+            }
+            ordered.remove(job);
+            byId.remove(job.getId());
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+        return job;
+    }
+
+    /**
+     * Moves a job to the top of the queue, raising its priority to that of the current top job if needed
+     * @param jobId long
+     * @return PrintJob The moved job, or null if there is no job with this ID
+     */
+    public PrintJob moveToTop(long jobId) {
+        PrintJob moved;
+        long seq = 0;
+        lock.lock();
+        try {
+            PrintJob job = byId.get(jobId);
+            if (job == null) {
+                return null;
+            }
+            PrintJob top = peek();
+            moved = job.reposition(Math.max(job.getPriority(), top.getPriority()), headRank.decrementAndGet());
+            if (journal != null) {
+                seq = journal.appendReposition(moved);
+            }
+            ordered.remove(job);
+            ordered.add(moved);
+            byId.put(jobId, moved);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+        return moved;
+    }
+
+    /**
+     * Removes a job from the queue
+     * @param jobId long
+     * @return PrintJob The removed job, or null if there is no job with this ID
+     */
+    public PrintJob remove(long jobId) {
+        PrintJob job;
+        long seq = 0;
+        lock.lock();
+        try {
+            job = byId.get(jobId);
+            if (job == null) {
+                return null;
+            }
+            if (journal != null) {
+                seq = journal.appendRemove(jobId);
+            }
+            byId.remove(jobId);
+            ordered.remove(job);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+        return job;
+    }
+
+    /**
+     * Writes a snapshot of the queue to the journal and drops the log records it replaces, so recovery only has to
+     * read the snapshot. Writers are only blocked while the log is rotated, not while the snapshot is written.
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void checkpoint() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        long generation;
+        List<PrintJob> jobs;
+        long nextJobId;
+        lock.lock();
+        try {
+            generation = journal.rotate();
+            jobs = new ArrayList<>(byId.values());
+            nextJobId = nextId.get();
+        } finally {
+            lock.unlock();
+        }
+        journal.writeSnapshot(generation, jobs, nextJobId);
+    }
+
+    /**
+     * @param jobId long
+     * @return PrintJob The job with this ID, or null if it is not queued
+     */
+    public PrintJob get(long jobId) {
+        return byId.get(jobId);
+    }
+
+    /**
+     * @return PrintJob The job at the top of the queue, or null if the queue is empty
+     */
+    public PrintJob peek() {
+        try {
+            return ordered.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Takes a page of jobs, from top to bottom, starting right after the given cursor. Jobs queued or moved while
+     * paging may be skipped or seen twice, but no page ever blocks writers.
+     * @param cursor String Cursor returned with the previous page, or null to start at the top of the queue
+     * @param limit int Maximum number of jobs on the page
+     * @return QueuePage
+     */
+    public QueuePage page(String cursor, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Page limit must be positive: " + limit);
+        }
+        PrintJob after = QueuePage.decodeCursor(cursor);
+        Iterator<PrintJob> it = (after == null ? ordered : ordered.tailSet(after, false)).iterator();
+
+        List<PrintJob> jobs = new ArrayList<>(Math.min(limit, 64));
+        while (jobs.size() < limit && it.hasNext()) {
+            jobs.add(it.next());
+        }
+        String nextCursor = it.hasNext() ? QueuePage.cursorAfter(jobs.get(jobs.size() - 1)) : null;
+        return new QueuePage(jobs, nextCursor, size());
+    }
+
+    private void awaitDurable(long seq) {
+        if (seq != 0) {
+            journal.awaitDurable(seq);
+        }
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public boolean isEmpty() {
+        return byId.isEmpty();
+    }
+
+    /**
+     * Iterates the jobs from the top to the bottom of the queue
+     * @return Iterator<PrintJob>
+     */
+    @Override
+    public Iterator<PrintJob> iterator() {
+        return ordered.iterator();
+    }
+}
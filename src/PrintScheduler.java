@@ -0,0 +1,445 @@
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Dispatches the jobs of a PrintQueue to the printers they were sent to. Every printer has a queue of its own,
+ * ordered by the DispatchPolicy, and a thread of its own that takes the next job and prints it on the printer's
+ * PrintDevice, so printers work in parallel and a busy printer never holds up the others. The PrintQueue stays the
+ * record of every job: a job is removed from it, and from its log when durable, only once it has been printed, so a
+ * job being printed when the server stops is printed again after it starts.
+ *
+ * Printers belong to a class, e.g. all laser printers of one office. With work stealing on, a printer that runs out
+ * of jobs takes the next job of the busy printer of its class with the longest queue, so a burst sent to one device
+ * is spread over every idle device that can print it.
+ *
+ * Each printer's queue is only locked by its own thread, its thieves and the requests adding to it, so contention
+ * grows with the load of one printer, not with the number of printers.
+ */
+public class PrintScheduler {
+    static final String DEFAULT = "default";
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final PrintQueue queue;
+    private final DispatchPolicy policy;
+    private final boolean steal;
+    private final ToLongFunction<PrintJob> cost;
+    private final Function<String, PrintDevice> devices;
+    private final Listener listener;
+
+    private final ConcurrentHashMap<String, Printer> printers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<Printer>> classes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, QueuedJob> queued = new ConcurrentHashMap<>();
+    private volatile boolean stopped;
+
+    /**
+     * Prints a job, or simulates printing it
+     */
+    public interface PrintDevice {
+
+        /**
+         * @param job PrintJob
+         * @param cost long The estimated cost of the job, in bytes
+         * @throws InterruptedException if the scheduler is shut down meanwhile, in which case the job stays queued
+         * @throws Exception if the job could not be printed, in which case it is dropped
+         */
+        void print(PrintJob job, long cost) throws Exception;
+    }
+
+    /**
+     * Told about every job that left the queue, on the thread of the printer that took it
+     */
+    public interface Listener {
+
+        /**
+         * @param job PrintJob
+         * @param printer String The printer that took the job, which may differ from the one it was sent to
+         * @param failure Exception Why the job could not be printed, or null if it was
+         */
+        void jobDone(PrintJob job, String printer, Exception failure);
+    }
+
+    /**
+     * A job on a printer's queue with the cost estimated when it was queued
+     */
+    public static final class QueuedJob {
+        private final PrintJob job;
+        private final long cost;
+        private final Printer printer;
+
+        private QueuedJob(PrintJob job, long cost, Printer printer) {
+            this.job = job;
+            this.cost = cost;
+            this.printer = printer;
+        }
+
+        public PrintJob getJob() {
+            return job;
+        }
+
+        /**
+         * @return long Estimated size of the job in bytes, 0 if unknown
+         */
+        public long getCost() {
+            return cost;
+        }
+    }
+
+    /**
+     * @param queue PrintQueue Holds every job; the jobs already in it are dispatched right away
+     * @param policy DispatchPolicy The order each printer takes its jobs in
+     * @param steal boolean Whether idle printers take jobs queued for busy printers of the same class
+     * @param cost ToLongFunction<PrintJob> Estimates the cost of a job, in bytes
+     * @param devices Function<String, PrintDevice> Creates the device of a printer from its name
+     * @param listener Listener
+     */
+    public PrintScheduler(PrintQueue queue, DispatchPolicy policy, boolean steal, ToLongFunction<PrintJob> cost,
+                          Function<String, PrintDevice> devices, Listener listener) {
+        this.queue = queue;
+        this.policy = policy;
+        this.steal = steal;
+        this.cost = cost;
+        this.devices = devices;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a printer, unless one with that name already exists, and starts its thread
+     * @param name String
+     * @param printerClass String
+     */
+    public void addPrinter(String name, String printerClass) {
+        printers.computeIfAbsent(name, n -> {
+            Printer printer = new Printer(n, printerClass, devices.apply(n));
+            classes.computeIfAbsent(printerClass, c -> new CopyOnWriteArrayList<>()).add(printer);
+            printer.worker.start();
+            return printer;
+        });
+    }
+
+    /**
+     * Dispatches every job of the queue, adding the printers they were sent to if they are no longer configured, so
+     * no recovered job is stranded. Called once the configured printers are added, before any new job is submitted.
+     */
+    public void dispatchQueued() {
+        for (PrintJob job : queue) {
+            addPrinter(printerName(job.getPrinter()), DEFAULT);
+            submit(job);
+        }
+    }
+
+    /**
+     * Finds the printer a job is sent to. Only printers added with addPrinter() exist; naming another one never
+     * creates it, so clients cannot make the server start threads.
+     * @param printer String Name of the printer, a number N for "printerN", or null or empty for the "default"
+     * printer
+     * @return String The name the job is to be queued under, or null if there is no such printer
+     */
+    public String resolve(String printer) {
+        String name = printerName(printer);
+        return printers.containsKey(name) ? name : null;
+    }
+
+    /**
+     * Queues a job, already on the PrintQueue, for its printer, waking that printer or an idle one of its class
+     * @param job PrintJob A job whose printer was returned by resolve()
+     */
+    public void submit(PrintJob job) {
+        Printer printer = printers.get(printerName(job.getPrinter()));
+        QueuedJob entry = new QueuedJob(job, cost.applyAsLong(job), printer);
+        synchronized (printer) {
+            printer.jobs.add(entry);
+            queued.put(job.getId(), entry);
+        }
+        if (printer.idle) {
+            LockSupport.unpark(printer.worker);
+        } else if (steal) {
+            wakeIdle(printer.printerClass);
+        }
+    }
+
+    /**
+     * Puts a job moved on the PrintQueue at its new place on its printer's queue, unless a printer already took it
+     * @param moved PrintJob
+     */
+    public void reposition(PrintJob moved) {
+        QueuedJob entry = queued.get(moved.getId());
+        if (entry == null) {
+            return;
+        }
+        Printer printer = entry.printer;
+        synchronized (printer) {
+            if (printer.jobs.remove(entry)) {
+                QueuedJob repositioned = new QueuedJob(moved, entry.cost, printer);
+                printer.jobs.add(repositioned);
+                queued.put(moved.getId(), repositioned);
+            }
+        }
+    }
+
+    /**
+     * @return List<PrinterStatus> The state of every printer, by name
+     */
+    public List<PrinterStatus> statuses() {
+        List<PrinterStatus> statuses = new ArrayList<>(printers.size());
+        for (Printer printer : new TreeMap<>(printers).values()) {
+            statuses.add(printer.status());
+        }
+        return statuses;
+    }
+
+    /**
+     * @return int Number of printers printing a job right now
+     */
+    public int getBusyCount() {
+        int busy = 0;
+        for (Printer printer : printers.values()) {
+            busy += printer.printing == null ? 0 : 1;
+        }
+        return busy;
+    }
+
+    public long getPrintedCount() {
+        long printed = 0;
+        for (Printer printer : printers.values()) {
+            printed += printer.printed;
+        }
+        return printed;
+    }
+
+    public long getFailedCount() {
+        long failed = 0;
+        for (Printer printer : printers.values()) {
+            failed += printer.failed;
+        }
+        return failed;
+    }
+
+    public long getStolenCount() {
+        long stolen = 0;
+        for (Printer printer : printers.values()) {
+            stolen += printer.stolen;
+        }
+        return stolen;
+    }
+
+    /**
+     * @return String The policy and one line per printer
+     */
+    public String describe() {
+        StringBuilder out = new StringBuilder(String.format("printScheduler[printers=%d, busy=%d, printed=%d, "
+                + "failed=%d, stolen=%d, steal=%b]%n", printers.size(), getBusyCount(), getPrintedCount(),
+                getFailedCount(), getStolenCount(), steal));
+        for (PrinterStatus status : statuses()) {
+            out.append(status).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Stops every printer. A job being printed is interrupted and stays on the PrintQueue.
+     */
+    public void shutdown() {
+        stopped = true;
+        for (Printer printer : printers.values()) {
+            printer.worker.interrupt();
+        }
+        boolean interrupted = false;
+        for (Printer printer : printers.values()) {
+            while (true) {
+                try {
+                    printer.worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param jobMillis long Time every job takes
+     * @param bytesPerSecond long Speed at which the cost of a job adds to that time
+     * @return PrintDevice A device that only waits as long as printing would take
+     */
+    public static PrintDevice simulated(long jobMillis, long bytesPerSecond) {
+        return (job, jobCost) -> Thread.sleep(jobMillis + (bytesPerSecond <= 0 ? 0 : jobCost * 1000 / bytesPerSecond));
+    }
+
+    private static String printerName(String printer) {
+        String name = printer == null ? "" : printer.trim();
+        if (name.isEmpty()) {
+            return DEFAULT;
+        }
+        // clients have always asked for a printer number
+        return name.chars().allMatch(c -> c >= '0' && c <= '9') ? "printer" + name : name;
+    }
+
+    /**
+     * Takes the next job of a printer of the same class that is busy printing, from the one with the most jobs
+     * waiting. The thief takes the job the victim would print next, since that is the one waiting the longest.
+     * @param thief Printer
+     * @return QueuedJob The taken job, or null if no busy printer of the class has jobs waiting
+     */
+    private QueuedJob steal(Printer thief) {
+        while (true) {
+            Printer victim = victim(thief);
+            if (victim == null) {
+                return null;
+            }
+            QueuedJob job = victim.take();
+            if (job != null) {
+                if (victim.depth() > 0) {
+                    // wake-ups from submit() may all have gone to this thief; pass one on
+                    wakeIdle(thief.printerClass);
+                }
+                return job;
+            }
+            // the victim took its last job itself; look again
+        }
+    }
+
+    /**
+     * Wakes up one idle printer of a class, if any, to steal a job
+     * @param printerClass String
+     */
+    private void wakeIdle(String printerClass) {
+        for (Printer printer : classes.get(printerClass)) {
+            if (printer.idle) {
+                LockSupport.unpark(printer.worker);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param thief Printer
+     * @return Printer The busy printer of the thief's class with the most jobs waiting, or null if there is none
+     */
+    private Printer victim(Printer thief) {
+        Printer victim = null;
+        int victimDepth = 0;
+        for (Printer candidate : classes.get(thief.printerClass)) {
+            int depth = candidate.depth();
+            if (candidate != thief && candidate.printing != null && depth > victimDepth) {
+                victim = candidate;
+                victimDepth = depth;
+            }
+        }
+        return victim;
+    }
+
+    private final class Printer implements Runnable {
+        private final String name;
+        private final String printerClass;
+        private final PrintDevice device;
+        private final Thread worker;
+        // guarded by this
+        private final TreeSet<QueuedJob> jobs = new TreeSet<>(policy.thenComparingLong(q -> q.getJob().getId()));
+
+        private volatile boolean idle;
+        private volatile PrintJob printing;
+        // only updated by the worker
+        private volatile long printed;
+        private volatile long failed;
+        private volatile long stolen;
+
+        private Printer(String name, String printerClass, PrintDevice device) {
+            this.name = name;
+            this.printerClass = printerClass;
+            this.device = device;
+            this.worker = new Thread(this, "printer-" + name);
+            this.worker.setDaemon(true);
+        }
+
+        private synchronized QueuedJob take() {
+            QueuedJob job = jobs.pollFirst();
+            if (job != null) {
+                queued.remove(job.getJob().getId(), job);
+            }
+            return job;
+        }
+
+        private synchronized int depth() {
+            return jobs.size();
+        }
+
+        private PrinterStatus status() {
+            PrintJob job = printing;
+            String status = stopped ? "OFF" : job == null ? "idle" : "printing job " + job.getId();
+            return new PrinterStatus(name, printerClass, status, depth(), printed, stolen);
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                QueuedJob next = take();
+                boolean taken = false;
+                if (next == null && steal) {
+                    next = steal(this);
+                    taken = next != null;
+                }
+                if (next == null) {
+                    idle = true;
+                    // submit() reads idle after adding a job, so a job added before this check is seen by it, and
+                    // one added after it finds the printer idle and wakes it up
+                    if (depth() == 0 && (!steal || victim(this) == null) && !stopped) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    idle = false;
+                    continue;
+                }
+                if (!print(next, taken)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return True/False False if printing was interrupted by shutdown()
+         */
+        private boolean print(QueuedJob next, boolean taken) {
+            PrintJob job = next.job;
+            if (queue.get(job.getId()) == null) {
+                // removed from the print queue since it was dispatched
+                return true;
+            }
+            Exception failure = null;
+            printing = job;
+            try {
+                device.print(job, next.cost);
+            } catch (InterruptedException e) {
+                printing = null;
+                return false;
+            } catch (Exception e) {
+                failure = e;
+            }
+            try {
+                queue.remove(job.getId());
+            } catch (UncheckedIOException e) {
+                // the job stays on the durable queue and is printed again after a restart
+                failure = failure == null ? e : failure;
+            }
+            printing = null;
+            if (failure == null) {
+                printed++;
+                stolen += taken ? 1 : 0;
+            } else {
+                failed++;
+            }
+            listener.jobDone(job, name, failure);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the printer state pushed to subscribed clients: the print server's status and total queue depth, and
+ * the state of every printer. Events are coalesced, so a client may skip versions but always ends up with the latest
+ * state.
+ */
+public class PrinterEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long version;
+    private final String printerStatus;
+    private final int queueDepth;
+    private final List<PrinterStatus> printers;
+
+    public PrinterEvent(long version, String printerStatus, int queueDepth) {
+        this(version, printerStatus, queueDepth, Collections.emptyList());
+    }
+
+    public PrinterEvent(long version, String printerStatus, int queueDepth, List<PrinterStatus> printers) {
+        this.version = version;
+        this.printerStatus = printerStatus;
+        this.queueDepth = queueDepth;
+        this.printers = printers;
+    }
+
+    /**
+     * @return long Increases with every state change, so newer events can be told from older ones
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public String getPrinterStatus() {
+        return printerStatus;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return List<PrinterStatus> The state of every printer, by name; empty while the print server is OFF
+     */
+    public List<PrinterStatus> getPrinters() {
+        return printers == null ? Collections.<PrinterStatus>emptyList() : printers;
+    }
+}
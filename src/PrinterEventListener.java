@@ -0,0 +1,16 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Remote callback a client exports and subscribes with the print server to be told about printer status and queue
+ * changes instead of polling for them.
+ */
+public interface PrinterEventListener extends Remote {
+
+    /**
+     * Receives the latest printer state
+     * @param event PrinterEvent
+     * @throws RemoteException
+     */
+    void onPrinterEvent(PrinterEvent event) throws RemoteException;
+}
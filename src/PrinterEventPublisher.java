@@ -0,0 +1,204 @@
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pushes printer state changes to subscribed clients. Publishing never blocks: each subscriber has a single slot
+ * holding the latest undelivered event, so bursts of changes coalesce into one callback, and at most one delivery per
+ * subscriber is in flight. The delivery pool keeps a few threads and grows up to one thread per subscriber, so a
+ * client whose callback hangs only holds up its own events. Subscribers whose callbacks keep failing are dropped.
+ *
+ * Every subscription belongs to a user, who may hold at most maxPerOwner of them, and there are at most
+ * maxSubscribers in total, which also bounds the number of delivery threads. When every thread is taken, e.g. by
+ * the callbacks of just removed subscribers that still hang, a delivery waits in an overflow queue that every
+ * delivery thread works through once it is done with its own subscriber.
+ */
+public class PrinterEventPublisher {
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    private final ConcurrentHashMap<PrinterEventListener, Subscription> subscriptions = new ConcurrentHashMap<>();
+    // guarded by this
+    private final HashMap<String, Integer> subscriptionsPerOwner = new HashMap<>();
+    private final int maxPerOwner;
+    private final int maxSubscribers;
+    private final ExecutorService delivery;
+    private final ConcurrentLinkedQueue<Subscription> overflow = new ConcurrentLinkedQueue<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile PrinterEvent current = new PrinterEvent(0, "OFF", 0);
+
+    /**
+     * @param deliveryThreads int Number of threads kept for making callbacks
+     * @param maxPerOwner int Number of listeners one user may subscribe
+     * @param maxSubscribers int Number of listeners subscribed at the same time
+     */
+    public PrinterEventPublisher(int deliveryThreads, int maxPerOwner, int maxSubscribers) {
+        this.maxPerOwner = maxPerOwner;
+        this.maxSubscribers = maxSubscribers;
+        AtomicInteger threadCount = new AtomicInteger();
+        // a drain is only scheduled while its subscription has none running, so there are about as many tasks as
+        // subscribers; the pool only rejects one while a thread is between two tasks or stuck in a removed
+        // subscriber's callback
+        this.delivery = new ThreadPoolExecutor(Math.min(deliveryThreads, maxSubscribers), Math.max(1, maxSubscribers),
+                60L, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "printer-event-delivery-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Subscribes a listener and sends it the current state right away. Subscribing a listener again keeps its
+     * original owner.
+     * @param listener PrinterEventListener
+     * @param owner String The user subscribing the listener
+     * @return True/False False if the owner or the publisher already has as many subscriptions as allowed
+     */
+    public boolean subscribe(PrinterEventListener listener, String owner) {
+        Subscription subscription;
+        synchronized (this) {
+            subscription = subscriptions.get(listener);
+            if (subscription == null) {
+                int owned = subscriptionsPerOwner.getOrDefault(owner, 0);
+                if (owned >= maxPerOwner || subscriptions.size() >= maxSubscribers) {
+                    return false;
+                }
+                subscription = new Subscription(listener, owner);
+                subscriptions.put(listener, subscription);
+                subscriptionsPerOwner.put(owner, owned + 1);
+            }
+        }
+        subscription.offer(current);
+        return true;
+    }
+
+    /**
+     * @param listener PrinterEventListener
+     * @param owner String The user unsubscribing the listener
+     * @return True/False False if the listener is not subscribed by that user
+     */
+    public boolean unsubscribe(PrinterEventListener listener, String owner) {
+        Subscription subscription = subscriptions.get(listener);
+        return subscription != null && subscription.owner.equals(owner) && remove(subscription);
+    }
+
+    /**
+     * Records a new printer state and schedules its delivery to every subscriber
+     * @param printerStatus String
+     * @param queueDepth int
+     * @param printers List<PrinterStatus>
+     */
+    public void publish(String printerStatus, int queueDepth, List<PrinterStatus> printers) {
+        PrinterEvent event = new PrinterEvent(version.incrementAndGet(), printerStatus, queueDepth, printers);
+        current = event;
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * @return int Number of subscribed listeners
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Stops delivering events and drops every subscriber
+     */
+    public synchronized void shutdown() {
+        delivery.shutdownNow();
+        overflow.clear();
+        subscriptions.clear();
+        subscriptionsPerOwner.clear();
+    }
+
+    private synchronized boolean remove(Subscription subscription) {
+        if (!subscriptions.remove(subscription.listener, subscription)) {
+            return false;
+        }
+        subscriptionsPerOwner.computeIfPresent(subscription.owner, (owner, owned) -> owned == 1 ? null : owned - 1);
+        return true;
+    }
+
+    private final class Subscription {
+        private final PrinterEventListener listener;
+        private final String owner;
+        private final AtomicReference<PrinterEvent> pending = new AtomicReference<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private int failures;
+
+        private Subscription(PrinterEventListener listener, String owner) {
+            this.listener = listener;
+            this.owner = owner;
+        }
+
+        private void offer(PrinterEvent event) {
+            // keep only the newest event; publish() may race with an older offer from subscribe()
+            PrinterEvent previous;
+            do {
+                previous = pending.get();
+                if (previous != null && previous.getVersion() >= event.getVersion()) {
+                    break;
+                }
+            } while (!pending.compareAndSet(previous, event));
+
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    delivery.execute(this::drainWithOverflow);
+                } catch (RejectedExecutionException e) {
+                    // stays scheduled: the next delivery thread that is done takes it over, so publishing never
+                    // fails or waits for a callback
+                    if (!delivery.isShutdown()) {
+                        overflow.add(this);
+                    }
+                }
+            }
+        }
+
+        private void drainWithOverflow() {
+            drain();
+            Subscription next;
+            while ((next = overflow.poll()) != null) {
+                next.drain();
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                PrinterEvent event = pending.getAndSet(null);
+                if (event == null) {
+                    scheduled.set(false);
+                    // an offer may have slipped in between the empty read and clearing the flag
+                    if (pending.get() == null || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                try {
+                    listener.onPrinterEvent(event);
+                    failures = 0;
+                } catch (RemoteException | RuntimeException e) {
+                    // a RuntimeException escaping would leave the subscription scheduled, and silent, for good
+                    if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+                        System.out.println("Dropping printer event subscriber of \"" + owner + "\" after " + failures
+                                + " failures: " + e);
+                        remove(this);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.Serializable;
+
+/**
+ * State of one printer as reported to clients: what it is doing, how many jobs wait on its queue and how many it has
+ * printed since the server started.
+ */
+public class PrinterStatus implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final String printerClass;
+    private final String status;
+    private final int queueDepth;
+    private final long printed;
+    private final long stolen;
+
+    public PrinterStatus(String name, String printerClass, String status, int queueDepth, long printed, long stolen) {
+        this.name = name;
+        this.printerClass = printerClass;
+        this.status = status;
+        this.queueDepth = queueDepth;
+        this.printed = printed;
+        this.stolen = stolen;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return String Printers of the same class can print each other's jobs
+     */
+    public String getPrinterClass() {
+        return printerClass;
+    }
+
+    /**
+     * @return String "idle", "printing job N" or "OFF"
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * @return int Number of jobs waiting for this printer, not counting the one it is printing
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getPrinted() {
+        return printed;
+    }
+
+    /**
+     * @return long Number of the printed jobs that were queued for another printer of the same class
+     */
+    public long getStolen() {
+        return stolen;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + printerClass + "): " + status + ", " + queueDepth + " queued, " + printed + " printed ("
+                + stolen + " taken over)";
+    }
+}
@@ -0,0 +1,545 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log that makes a PrintQueue durable. Every enqueue, reposition and removal is appended as a record and
+ * the queue operation only returns once its record is on disk. Records are buffered in memory and written by a
+ * single flusher thread, which syncs everything that arrived while the previous sync was running in one go (group
+ * commit), so concurrent print() calls share fsyncs instead of paying for one each.
+ *
+ * The directory holds numbered generations: "queue-N.log" holds the records appended since "queue-N.snapshot" was
+ * taken. A checkpoint starts a new log generation, writes the whole queue as the next snapshot and deletes older
+ * files, which keeps recovery time proportional to the queue rather than to its history. Checkpoints run after
+ * every checkpointRecords records and when the journal is opened.
+ *
+ * Log records are [int payload length][int CRC32 of payload][payload]; recovery stops reading a log at the first
+ * incomplete or corrupt record, which can only be one that was never acknowledged.
+ */
+public class QueueJournal implements AutoCloseable {
+    private static final int SNAPSHOT_MAGIC = 0x514A4F42; // "QJOB"
+    private static final int FORMAT_VERSION = 1;
+    private static final byte ENQUEUE = 1;
+    private static final byte REPOSITION = 2;
+    private static final byte REMOVE = 3;
+
+    private final File dir;
+    private final long checkpointRecords;
+    private final Thread flusher;
+    private final ExecutorService checkpointer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // appenders wake the flusher on "appended", the flusher wakes callers waiting in awaitDurable() on "durable"
+    private final Condition appended = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+
+    // guarded by lock
+    private FileChannel log;
+    private long generation;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+    private long appendedSeq;
+    private long durableSeq;
+    private long recordsSinceCheckpoint;
+    private boolean checkpointScheduled;
+    private IOException failure;
+    private boolean closed;
+    private Runnable checkpointTask;
+
+    private final Map<Long, PrintJob> recoveredJobs = new LinkedHashMap<>();
+    private long recoveredNextId = 1;
+    private long groupCommits;
+
+    /**
+     * Opens the journal in a directory, creating it if needed, and recovers the queue it holds
+     * @param dir File
+     * @param checkpointRecords long Number of records after which a checkpoint is taken
+     * @throws IOException if the directory or its files cannot be read
+     */
+    public QueueJournal(File dir, long checkpointRecords) throws IOException {
+        this.dir = dir;
+        this.checkpointRecords = checkpointRecords;
+        Files.createDirectories(dir.toPath());
+
+        long recoveredRecords = recover();
+        recordsSinceCheckpoint = recoveredRecords;
+        log = openLog(++generation);
+        System.out.println("Recovered " + recoveredJobs.size() + " print jobs (" + recoveredRecords
+                + " log records replayed) from " + dir);
+
+        flusher = new Thread(this::flushLoop, "queue-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        checkpointer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "queue-journal-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return Collection<PrintJob> The jobs that were queued when the journal was last closed or the process died
+     */
+    Collection<PrintJob> getRecoveredJobs() {
+        return recoveredJobs.values();
+    }
+
+    /**
+     * @return long The ID the next job should get, so IDs are never reused across restarts
+     */
+    long getRecoveredNextId() {
+        return recoveredNextId;
+    }
+
+    /**
+     * @param task Runnable Run in the background whenever enough records have been appended for a checkpoint
+     */
+    void setCheckpointTask(Runnable task) {
+        lock.lock();
+        try {
+            checkpointTask = task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the record of a newly queued job
+     * @param job PrintJob
+     * @return long Sequence number to pass to awaitDurable()
+     */
+    long appendEnqueue(PrintJob job) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(ENQUEUE);
+            writeJob(out, job);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return append(bytes.toByteArray());
+    }
+
+    /**
+     * Appends the record of a job that moved within the queue
+     * @param job PrintJob The job at its new place
+     * @return long Sequence number to pass to awaitDurable()
+     */
+    long appendReposition(PrintJob job) {
+        ByteBuffer payload = ByteBuffer.allocate(21);
+        payload.put(REPOSITION).putLong(job.getId()).putInt(job.getPriority()).putLong(job.getRank());
+        return append(payload.array());
+    }
+
+    /**
+     * Appends the record of a job leaving the queue, printed or removed
+     * @param jobId long
+     * @return long Sequence number to pass to awaitDurable()
+     */
+    long appendRemove(long jobId) {
+        ByteBuffer payload = ByteBuffer.allocate(9);
+        payload.put(REMOVE).putLong(jobId);
+        return append(payload.array());
+    }
+
+    /**
+     * Waits until the record with the given sequence number, and every one before it, is on disk
+     * @param seq long
+     * @throws UncheckedIOException if the log can no longer be written
+     */
+    void awaitDurable(long seq) {
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            while (durableSeq < seq && failure == null) {
+                try {
+                    durable.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (durableSeq < seq) {
+                throw new UncheckedIOException("Print queue log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the current log generation and starts the next one. The caller must hold the queue's lock, so no record
+     * is appended meanwhile and the queue's state matches the end of the finished generation exactly.
+     * @return long The new generation; a snapshot of the queue taken now belongs to it
+     * @throws IOException if the log cannot be synced or the next one created
+     */
+    long rotate() throws IOException {
+        lock.lock();
+        try {
+            awaitDurable(appendedSeq);
+            FileChannel next = openLog(generation + 1);
+            log.close();
+            log = next;
+            recordsSinceCheckpoint = 0;
+            return ++generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the queue for a generation started by rotate(), then deletes every older file
+     * @param snapshotGeneration long
+     * @param jobs Collection<PrintJob> Every queued job
+     * @param nextId long The ID the next job will get
+     * @throws IOException if the snapshot cannot be written
+     */
+    void writeSnapshot(long snapshotGeneration, Collection<PrintJob> jobs, long nextId) throws IOException {
+        File snapshot = file(snapshotGeneration, "snapshot");
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(nextId);
+            out.writeInt(jobs.size());
+            for (PrintJob job : jobs) {
+                writeJob(out, job);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for (long old : generations()) {
+            if (old < snapshotGeneration) {
+                Files.deleteIfExists(file(old, "snapshot").toPath());
+                Files.deleteIfExists(file(old, "log").toPath());
+            }
+        }
+    }
+
+    /**
+     * @return String One-line summary of the journal's state
+     */
+    public String stats() {
+        lock.lock();
+        try {
+            return String.format("queueJournal[generation=%d, appended=%d, durable=%d, groupCommits=%d, "
+                    + "sinceCheckpoint=%d]", generation, appendedSeq, durableSeq, groupCommits,
+                    recordsSinceCheckpoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs every appended record and closes the log
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.out.println("Could not close the print queue log: " + e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long append(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new UncheckedIOException("Print queue log failed", failure);
+            }
+            if (closed) {
+                throw new IllegalStateException("Print queue log is closed");
+            }
+            writeInt(pending, payload.length);
+            writeInt(pending, (int) crc.getValue());
+            pending.write(payload, 0, payload.length);
+            appendedSeq++;
+            appended.signal();
+            return appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            FileChannel channel;
+            long batchSeq;
+            lock.lock();
+            try {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        appended.await();
+                    } catch (InterruptedException e) {
+                        // only close() stops the flusher
+                    }
+                }
+                if (pending.size() == 0) {
+                    return;
+                }
+                batch = pending;
+                pending = new ByteArrayOutputStream(Math.max(4096, batch.size()));
+                channel = log;
+                batchSeq = appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+
+            // written outside the lock, so appenders keep filling the next batch during the sync
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    System.out.println("Print queue log failed: " + error);
+                    failure = error;
+                } else {
+                    recordsSinceCheckpoint += batchSeq - durableSeq;
+                    durableSeq = batchSeq;
+                    groupCommits++;
+                    scheduleCheckpointIfDue();
+                }
+                durable.signalAll();
+                if (failure != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void scheduleCheckpointIfDue() {
+        if (recordsSinceCheckpoint < checkpointRecords || checkpointScheduled || checkpointTask == null || closed) {
+            return;
+        }
+        checkpointScheduled = true;
+        Runnable task = checkpointTask;
+        checkpointer.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                lock.lock();
+                try {
+                    checkpointScheduled = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the newest snapshot and replays every log from its generation on
+     * @return long Number of replayed log records
+     */
+    private long recover() throws IOException {
+        TreeSet<Long> generations = generations();
+        long snapshotGeneration = 0;
+        for (long g : generations.descendingSet()) {
+            if (file(g, "snapshot").exists()) {
+                snapshotGeneration = g;
+                readSnapshot(file(g, "snapshot"));
+                break;
+            }
+        }
+
+        long replayed = 0;
+        for (long g : generations.tailSet(snapshotGeneration, true)) {
+            File logFile = file(g, "log");
+            if (logFile.exists()) {
+                replayed += replay(logFile);
+            }
+        }
+        generation = generations.isEmpty() ? 0 : generations.last();
+        return replayed;
+    }
+
+    private void readSnapshot(File snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException(snapshot + " is not a print queue snapshot");
+            }
+            recoveredNextId = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                PrintJob job = readJob(in);
+                recoveredJobs.put(job.getId(), job);
+            }
+        }
+    }
+
+    private long replay(File logFile) throws IOException {
+        long records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || length > 1 << 20) {
+                        System.out.println("Ignoring corrupt tail of " + logFile);
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        System.out.println("Ignoring corrupt tail of " + logFile);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // end of the log, or a record cut short by a crash before it was acknowledged
+                    break;
+                }
+                apply(payload);
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        switch (in.readByte()) {
+            case ENQUEUE:
+                PrintJob job = readJob(in);
+                recoveredJobs.put(job.getId(), job);
+                recoveredNextId = Math.max(recoveredNextId, job.getId() + 1);
+                break;
+            case REPOSITION:
+                long id = in.readLong();
+                PrintJob moved = recoveredJobs.get(id);
+                if (moved != null) {
+                    recoveredJobs.put(id, moved.reposition(in.readInt(), in.readLong()));
+                }
+                break;
+            case REMOVE:
+                recoveredJobs.remove(in.readLong());
+                break;
+            default:
+                throw new IOException("Unknown print queue log record");
+        }
+    }
+
+    private static void writeJob(DataOutputStream out, PrintJob job) throws IOException {
+        out.writeLong(job.getId());
+        out.writeInt(job.getPriority());
+        out.writeLong(job.getRank());
+        writeString(out, job.getFilename());
+        writeString(out, job.getOwner());
+        writeString(out, job.getPrinter());
+    }
+
+    private static PrintJob readJob(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        int priority = in.readInt();
+        long rank = in.readLong();
+        return new PrintJob(id, readString(in), readString(in), readString(in), priority, rank);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        return FileChannel.open(file(logGeneration, "log").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private File file(long fileGeneration, String kind) {
+        return new File(dir, "queue-" + fileGeneration + "." + kind);
+    }
+
+    private TreeSet<Long> generations() {
+        TreeSet<Long> generations = new TreeSet<>();
+        String[] names = dir.list();
+        if (names == null) {
+            return generations;
+        }
+        for (String name : names) {
+            if (name.startsWith("queue-") && (name.endsWith(".log") || name.endsWith(".snapshot"))) {
+                try {
+                    generations.add(Long.parseLong(name.substring(6, name.lastIndexOf('.'))));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return generations;
+    }
+}
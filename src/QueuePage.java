@@ -0,0 +1,85 @@
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A bounded slice of the print queue, from top to bottom, together with the cursor to fetch the next slice.
+ */
+public class QueuePage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<PrintJob> jobs;
+    private final String nextCursor;
+    private final int totalJobs;
+    private final String error;
+
+    public QueuePage(List<PrintJob> jobs, String nextCursor, int totalJobs) {
+        this(jobs, nextCursor, totalJobs, null);
+    }
+
+    private QueuePage(List<PrintJob> jobs, String nextCursor, int totalJobs, String error) {
+        this.jobs = jobs;
+        this.nextCursor = nextCursor;
+        this.totalJobs = totalJobs;
+        this.error = error;
+    }
+
+    /**
+     * @param error String Why no page could be taken
+     * @return QueuePage An empty last page carrying the error
+     */
+    static QueuePage failed(String error) {
+        return new QueuePage(Collections.<PrintJob>emptyList(), null, 0, error);
+    }
+
+    public List<PrintJob> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * @return String Cursor to pass to queue() for the next page, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return int Number of jobs on the whole queue when the page was taken
+     */
+    public int getTotalJobs() {
+        return totalJobs;
+    }
+
+    /**
+     * @return String Why no page could be taken, or null if the page holds the jobs asked for
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Encodes the position right after a job as an opaque cursor
+     * @param job PrintJob
+     * @return String
+     */
+    static String cursorAfter(PrintJob job) {
+        return job.getPriority() + ":" + job.getRank();
+    }
+
+    /**
+     * @param cursor String
+     * @return PrintJob A placeholder job sorting exactly where the cursor points, or null for the top of the queue
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    static PrintJob decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        int separator = cursor.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Malformed queue cursor: " + cursor);
+        }
+        return new PrintJob(0, null, null, null, Integer.parseInt(cursor.substring(0, separator)),
+                Long.parseLong(cursor.substring(separator + 1)));
+    }
+}
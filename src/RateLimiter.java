@@ -0,0 +1,153 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free token bucket rate limiter keyed by string, e.g. a username or a client host. Each bucket is a single
+ * AtomicLong holding its theoretical arrival time (the generic cell rate algorithm), so taking a permit is one CAS
+ * and a rejection allocates nothing.
+ *
+ * Memory is bounded: at most maxKeys keys get a bucket of their own; once that many are tracked, other keys share
+ * a fixed set of striped buckets picked by hash until idle buckets are swept away. A bucket is idle once it has
+ * refilled completely, so evicting it forgets nothing.
+ */
+public class RateLimiter {
+    private static final int OVERFLOW_STRIPES = 1024;
+
+    private final String name;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int maxKeys;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Bucket[] overflow = new Bucket[OVERFLOW_STRIPES];
+    private final ScheduledExecutorService sweeper;
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param name String Shown in stats() and the sweeper thread name
+     * @param permitsPerMinute int Sustained rate per key
+     * @param burst int Permits a key may take at once after being idle
+     * @param maxKeys int Number of keys tracked with a bucket of their own
+     * @param sweepMillis long How often idle buckets are evicted
+     */
+    public RateLimiter(String name, int permitsPerMinute, int burst, int maxKeys, long sweepMillis) {
+        this.name = name;
+        this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / Math.max(1, permitsPerMinute);
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.maxKeys = maxKeys;
+        for (int i = 0; i < OVERFLOW_STRIPES; i++) {
+            overflow[i] = new Bucket();
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-limiter-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a permit for a key if its bucket has one
+     * @param key String
+     * @return True/False True if the permit was granted, False if the key is over its rate
+     */
+    public boolean tryAcquire(String key) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() < maxKeys) {
+                bucket = buckets.computeIfAbsent(key, k -> new Bucket());
+            } else {
+                overflowed.increment();
+                int h = key.hashCode();
+                bucket = overflow[(h ^ (h >>> 16)) & (OVERFLOW_STRIPES - 1)];
+            }
+        }
+
+        if (bucket.tryAcquire(now)) {
+            allowed.increment();
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Stops the sweeper
+     */
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * @return long Number of permits granted
+     */
+    public long getAllowedCount() {
+        return allowed.sum();
+    }
+
+    /**
+     * @return long Number of permits refused
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return int Number of keys with a bucket of their own
+     */
+    public int getTrackedKeys() {
+        return buckets.size();
+    }
+
+    /**
+     * @return String One-line summary of the limiter's counters
+     */
+    public String stats() {
+        return String.format("rateLimiter[%s, keys=%d/%d, allowed=%d, rejected=%d, overflowed=%d, evicted=%d]", name,
+                buckets.size(), maxKeys, allowed.sum(), rejected.sum(), overflowed.sum(), evicted.sum());
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Bucket>> it = buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Bucket> entry = it.next();
+            if (entry.getValue().isIdle(now) && buckets.remove(entry.getKey(), entry.getValue())) {
+                evicted.increment();
+            }
+        }
+    }
+
+    private final class Bucket {
+        // the time at which the bucket will be full again; a permit adds one interval to it
+        private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+
+        private boolean tryAcquire(long now) {
+            while (true) {
+                long current = theoreticalArrival.get();
+                long next = Math.max(current, now) + intervalNanos;
+                if (next - now > burstNanos) {
+                    return false;
+                }
+                if (theoreticalArrival.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        private boolean isIdle(long now) {
+            return theoreticalArrival.get() <= now;
+        }
+    }
+}
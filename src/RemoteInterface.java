@@ -3,6 +3,8 @@ import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
 
 public interface RemoteInterface extends Remote{
 
@@ -10,6 +12,14 @@ public interface RemoteInterface extends Remote{
 
     String authenticate(String username, String pswd) throws RemoteException;
 
+    /**
+     * Registers many users in one call, on behalf of a logged in user
+     * @param credentials List<String[]> One {username, password} pair per user
+     * @return List<String> One "username: outcome" line per user, in input order
+     * @throws RemoteException
+     */
+    List<String> registerBatch(List<String[]> credentials, String sessionKey) throws RemoteException;
+
     /**
      * Prints file "filename" on the specified "printer"
      * @param filename String
@@ -26,9 +36,19 @@ public interface RemoteInterface extends Remote{
      */
     String queue(String sessionKey) throws RemoteException;
 
+    /**
+     * Lists a bounded page of the print queue, from top to bottom
+     * @param cursor String The cursor of the previous page, or null to start at the top of the queue
+     * @param limit int Maximum number of jobs on the page
+     * @return QueuePage The page, or a failed page (see getError()) if the server is OFF, the session is not
+     * authenticated or the cursor is malformed
+     * @throws RemoteException
+     */
+    QueuePage queue(String cursor, int limit, String sessionKey) throws RemoteException;
+
     /**
      * Moves "job" to the top of the queue
-     * @param job int
+     * @param job int The ID the job was given when it was queued
      * @return String
      * @throws RemoteException
      */
@@ -49,7 +69,8 @@ public interface RemoteInterface extends Remote{
     String stop(String sessionKey) throws RemoteException, SQLException;
 
     /**
-     * Restarts the print server, clears the print queue and starts the print server again
+     * Restarts the print server: reloads the printer state while keeping sessions ("hot"), or stops and starts it
+     * again ("cold"), depending on the server's "auth.restart.mode"
      * @return String
      * @throws RemoteException
      */
@@ -62,6 +83,31 @@ public interface RemoteInterface extends Remote{
      */
     String status() throws RemoteException;
 
+    /**
+     * Lists every printer with its status and queue depth
+     * @return List<PrinterStatus> One status per printer, by name; empty while the print server is OFF
+     * @throws RemoteException
+     */
+    List<PrinterStatus> printers() throws RemoteException;
+
+    /**
+     * Subscribes a listener to printer status and queue changes on behalf of a logged in user; it is sent the current
+     * state right away and every later change, coalesced, from then on. Subscribing an already subscribed listener
+     * again is harmless. Each user may only subscribe a few listeners.
+     * @param listener PrinterEventListener
+     * @return String The current printer status, or why the listener was not subscribed
+     * @throws RemoteException
+     */
+    String subscribe(PrinterEventListener listener, String sessionKey) throws RemoteException;
+
+    /**
+     * Stops sending printer events to a listener the user subscribed
+     * @param listener PrinterEventListener
+     * @return String
+     * @throws RemoteException
+     */
+    String unsubscribe(PrinterEventListener listener, String sessionKey) throws RemoteException;
+
     /**
      * Prints the value of the "parameter" on the user's display
      * @param parameter String
@@ -78,4 +124,29 @@ public interface RemoteInterface extends Remote{
      * @throws RemoteException
      */
     String setConfig(String parameter, String value, String sessionKey) throws RemoteException;
+
+    /**
+     * Sets several parameters at once; readers see either none or all of the new values
+     * @param parameters Map<String, String> New values by parameter; a null value removes the parameter
+     * @return String
+     * @throws RemoteException
+     */
+    String setConfig(Map<String, String> parameters, String sessionKey) throws RemoteException;
+
+    /**
+     * Reads every parameter at once, as one consistent version of the configuration
+     * @return ConfigStore.Snapshot The configuration, or null if not authenticated
+     * @throws RemoteException
+     */
+    ConfigStore.Snapshot readConfig(String sessionKey) throws RemoteException;
+
+    /**
+     * Runs several print, topQueue, readConfig and setConfig operations in one call, under a single session check
+     * @param operations List<BatchOperation>
+     * @return List<OperationResult> One result per operation, in order; every operation fails with the OFF or the
+     * not authenticated message if the server is OFF or the session is not authenticated, or when the batch holds
+     * more operations than the server accepts in one call
+     * @throws RemoteException
+     */
+    List<OperationResult> batch(List<BatchOperation> operations, String sessionKey) throws RemoteException;
 }
\ No newline at end of file
@@ -0,0 +1,229 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-side stub layer spreading calls over every server replica registered in one or more RMI registries.
+ *
+ * Each call goes to the live replica with the fewest outstanding requests. When a call cannot reach its replica the
+ * replica is marked down for a while and the call fails over to the next one. Calls are only retried when the
+ * failure proves the request never reached the server (connection refused, unknown object), so non-idempotent calls
+ * like print() are never executed twice; any other RemoteException marks the replica down and is rethrown.
+ *
+ * Replicas share the user store but hold their own sessions, print queue, job IDs and configuration, so calls are
+ * pinned to the replica that issued the session they carry: a session key returned by register() or authenticate()
+ * is remembered together with its replica, and any later call passing that key goes to the same replica for as long
+ * as it is live. Only when it is down does the call go elsewhere, where a session of the default "store" mode is
+ * unknown and the user has to log in again; with token sessions it stays valid.
+ */
+public class ReplicaBalancer implements InvocationHandler {
+    private static final long DOWN_MILLIS = 5000;
+    private static final int MAX_PINNED_SESSIONS = 10000;
+
+    private final List<String> hosts;
+    private final long refreshMillis;
+    private volatile List<Replica> replicas = new ArrayList<>();
+    private volatile long refreshedAt;
+    // session key -> ID of the replica that issued it, least recently used first
+    private final Map<String, String> pinnedSessions = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_PINNED_SESSIONS;
+                }
+            });
+
+    private ReplicaBalancer(List<String> hosts, long refreshMillis) {
+        this.hosts = hosts;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * Discovers the replicas bound in the registries of the given hosts
+     * @param hosts List<String> Registry hosts; a null host is the local registry
+     * @param refreshMillis long How often the registries are listed again to pick up new replicas
+     * @return RemoteInterface A stub that balances every call over the replicas
+     * @throws RemoteException if no replica can be found
+     */
+    public static RemoteInterface connect(List<String> hosts, long refreshMillis) throws RemoteException {
+        ReplicaBalancer balancer = new ReplicaBalancer(hosts, refreshMillis);
+        balancer.refresh();
+        if (balancer.replicas.isEmpty()) {
+            throw new ConnectException("No \"" + ReplicaRegistration.NAME_PREFIX + "\" replicas bound on " + hosts);
+        }
+        return (RemoteInterface) Proxy.newProxyInstance(RemoteInterface.class.getClassLoader(),
+                new Class<?>[]{RemoteInterface.class}, balancer);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "ReplicaBalancer" + hosts;
+            }
+        }
+
+        if (System.currentTimeMillis() - refreshedAt > refreshMillis) {
+            refresh();
+        }
+
+        String pinned = pinnedReplica(args);
+        List<Replica> tried = new ArrayList<>();
+        RemoteException lastError = null;
+        Replica replica;
+        while ((replica = pick(pinned, tried)) != null) {
+            tried.add(replica);
+            replica.outstanding.incrementAndGet();
+            try {
+                Object result = method.invoke(replica.stub, args);
+                if (result instanceof String && ("register".equals(method.getName())
+                        || "authenticate".equals(method.getName()))) {
+                    pinnedSessions.put((String) result, replica.id);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (!(cause instanceof RemoteException)) {
+                    throw cause;
+                }
+                replica.markDown();
+                if (!neverReachedServer((RemoteException) cause)) {
+                    throw cause;
+                }
+                lastError = (RemoteException) cause;
+            } finally {
+                replica.outstanding.decrementAndGet();
+            }
+        }
+
+        if (lastError != null) {
+            throw lastError;
+        }
+        throw new ConnectException("No live replica available on " + hosts);
+    }
+
+    /**
+     * @param args Object[] The arguments of a call
+     * @return String The ID of the replica that issued the session key passed to the call, or null if there is none
+     */
+    private String pinnedReplica(Object[] args) {
+        if (args == null) {
+            return null;
+        }
+        for (Object arg : args) {
+            String replicaId = arg instanceof String ? pinnedSessions.get(arg) : null;
+            if (replicaId != null) {
+                return replicaId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param pinned String ID of the replica the call is pinned to, or null
+     * @return Replica The pinned replica if it is live and not yet tried for this call, otherwise the live replica
+     * with the fewest outstanding calls not yet tried
+     */
+    private Replica pick(String pinned, List<Replica> tried) {
+        List<Replica> current = replicas;
+        if (current.isEmpty()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (pinned != null) {
+            for (Replica candidate : current) {
+                if (candidate.id.equals(pinned) && !tried.contains(candidate) && candidate.downUntil <= now) {
+                    return candidate;
+                }
+            }
+        }
+        int start = ThreadLocalRandom.current().nextInt(current.size());
+        Replica best = null;
+        for (int i = 0; i < current.size(); i++) {
+            Replica candidate = current.get((start + i) % current.size());
+            if (tried.contains(candidate) || candidate.downUntil > now) {
+                continue;
+            }
+            if (best == null || candidate.outstanding.get() < best.outstanding.get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Lists every registry again, keeping the state of replicas that are still bound
+     */
+    private synchronized void refresh() {
+        List<Replica> previous = replicas;
+        List<Replica> discovered = new ArrayList<>();
+        for (String host : hosts) {
+            try {
+                Registry registry = LocateRegistry.getRegistry(host);
+                for (String name : registry.list()) {
+                    if (!name.startsWith(ReplicaRegistration.NAME_PREFIX)) {
+                        continue;
+                    }
+                    String id = host + "/" + name;
+                    Replica known = null;
+                    for (Replica replica : previous) {
+                        if (replica.id.equals(id)) {
+                            known = replica;
+                        }
+                    }
+                    try {
+                        discovered.add(known != null ? known
+                                : new Replica(id, (RemoteInterface) registry.lookup(name)));
+                    } catch (Exception e) {
+                        // unbound between list() and lookup()
+                    }
+                }
+            } catch (RemoteException e) {
+                System.err.println("Registry on " + (host == null ? "localhost" : host) + " is unreachable: " + e);
+            }
+        }
+        replicas = discovered;
+        refreshedAt = System.currentTimeMillis();
+    }
+
+    private static boolean neverReachedServer(RemoteException e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException
+                || e instanceof NoSuchObjectException || e instanceof UnknownHostException;
+    }
+
+    private static final class Replica {
+        private final String id;
+        private final RemoteInterface stub;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile long downUntil;
+
+        private Replica(String id, RemoteInterface stub) {
+            this.id = id;
+            this.stub = stub;
+        }
+
+        private void markDown() {
+            downUntil = System.currentTimeMillis() + DOWN_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.rmi.AlreadyBoundException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one server replica bound in the RMI registry under its own name, "RemoteInterface-<replica id>", so that
+ * clients can discover every replica by listing the registry.
+ *
+ * The registry has no notion of expiry, so liveness is tracked with leases: every replica periodically renews its
+ * own binding and pings the other replicas bound in the same registry. A peer that has not answered for longer than
+ * the lease is unbound, so the registry converges on the set of live replicas even when one crashes without
+ * unbinding. A replica unbinds itself on a clean JVM shutdown.
+ *
+ * A replica never takes over a name that a live server is bound under: starting a second replica with the same ID,
+ * or a plain server next to a running one, fails. Only a binding whose server no longer answers, left behind by a
+ * crash, is replaced.
+ */
+public class ReplicaRegistration {
+    public static final String NAME_PREFIX = "RemoteInterface";
+
+    private final Registry registry;
+    private final String name;
+    private final RemoteInterface stub;
+    private final long leaseMillis;
+    private final ConcurrentHashMap<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * @param registry Registry
+     * @param replicaId String Unique ID of this replica, or null to bind under the plain "RemoteInterface" name
+     * @param stub RemoteInterface The exported stub of this replica
+     * @param leaseMillis long How long a peer may go without answering before it is unbound
+     */
+    public ReplicaRegistration(Registry registry, String replicaId, RemoteInterface stub, long leaseMillis) {
+        this.registry = registry;
+        this.name = replicaId == null ? NAME_PREFIX : NAME_PREFIX + "-" + replicaId;
+        this.stub = stub;
+        this.leaseMillis = leaseMillis;
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Binds this replica and starts renewing its lease
+     * @throws RemoteException
+     * @throws AlreadyBoundException if a live server is already bound under this replica's name
+     */
+    public void register() throws RemoteException, AlreadyBoundException {
+        try {
+            registry.bind(name, stub);
+        } catch (AlreadyBoundException e) {
+            if (isAlive(name)) {
+                throw e;
+            }
+            System.out.println("Replacing the stale binding of \"" + name + "\".");
+            registry.rebind(name, stub);
+        }
+        long interval = Math.max(1, leaseMillis / 3);
+        heartbeat.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::unregister, "replica-unregister"));
+    }
+
+    /**
+     * Stops renewing the lease and unbinds this replica
+     */
+    public void unregister() {
+        heartbeat.shutdownNow();
+        try {
+            registry.unbind(name);
+        } catch (RemoteException | NotBoundException e) {
+            // already gone, e.g. the registry went down before us
+        }
+    }
+
+    /**
+     * @return String The name this replica is bound under
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Renews this replica's own binding, binding it again if a peer unbound it, and unbinds peers whose lease ran
+     * out
+     */
+    void renew() {
+        try {
+            try {
+                if (!stub.equals(registry.lookup(name))) {
+                    System.out.println("\"" + name + "\" is bound to another server, leaving it alone.");
+                }
+            } catch (NotBoundException e) {
+                registry.bind(name, stub);
+            }
+            long now = System.currentTimeMillis();
+            for (String peer : registry.list()) {
+                if (peer.equals(name) || !peer.startsWith(NAME_PREFIX)) {
+                    continue;
+                }
+                if (isAlive(peer)) {
+                    lastSeen.put(peer, now);
+                } else if (now - lastSeen.computeIfAbsent(peer, p -> now) > leaseMillis) {
+                    System.out.println("Replica \"" + peer + "\" missed its lease, unbinding it.");
+                    registry.unbind(peer);
+                    lastSeen.remove(peer);
+                }
+            }
+        } catch (RemoteException | NotBoundException | AlreadyBoundException e) {
+            System.out.println("Could not renew the lease of replica \"" + name + "\": " + e);
+        }
+    }
+
+    private boolean isAlive(String peer) {
+        try {
+            ((RemoteInterface) registry.lookup(peer)).status();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
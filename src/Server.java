@@ -1,41 +1,177 @@
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
-import java.sql.*;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Server implements RemoteInterface {
-    private ArrayList<String> printQueue;
-    private String printerStatus = "OFF";
-    private HashMap<String, String> config;
-    private HashMap<String, String> sessions;
+    static final String NOT_AUTHENTICATED = "Not authenticated!";
+    static final String SERVER_OFF = "The print server is OFF.";
+    static final String TOO_MANY_SUBSCRIPTIONS = "Too many printer event subscriptions.";
+    private static final int MAX_QUEUE_PAGE_SIZE = 100;
 
-    private Connection connection;
+    // Requests hold the read lock while they use the fields below; start, stop and restart take the write lock
+    private final ReentrantReadWriteLock lifecycle = new ReentrantReadWriteLock();
+    private boolean running;
+    private String restartMode = System.getProperty("auth.restart.mode", "hot");
+    // Replicas share the user store, but the files of their own state default to per-replica paths
+    private final String replicaId = System.getProperty("auth.replica.id");
+
+    private PrintQueue printQueue;
+    private QueueJournal queueJournal;
+    private boolean queueDurable = Boolean.getBoolean("auth.queue.durable");
+    private String queueDir = System.getProperty("auth.queue.dir", replicaPath("queue"));
+    private long queueCheckpointRecords = Long.getLong("auth.queue.checkpointRecords", 100000L);
+    private volatile String printerStatus = "OFF";
+    private PrintScheduler printScheduler;
+    private boolean printDispatch = Boolean.parseBoolean(System.getProperty("auth.printers.dispatch", "true"));
+    private String printersConfig = System.getProperty("auth.printers",
+            "default,printer1,printer2,printer3,printer4");
+    private String printPolicy = System.getProperty("auth.printers.policy", "priority");
+    private boolean printSteal = Boolean.parseBoolean(System.getProperty("auth.printers.steal", "true"));
+    private long printJobMillis = Long.getLong("auth.printers.jobMillis", 1000L);
+    private long printBytesPerSecond = Long.getLong("auth.printers.bytesPerSecond", 1024 * 1024L);
+    private String printSpoolDir = System.getProperty("auth.printers.spoolDir");
+    private ConfigStore config;
+    private String configFile = System.getProperty("auth.config.file", replicaPath("config.db"));
+    private SessionManager sessions;
+    private String sessionMode = System.getProperty("auth.session.mode", "store");
+    private String tokenKeyRingFile = System.getProperty("auth.token.keyring");
+    private long tokenTtlMillis = Long.getLong("auth.token.ttlMillis", 8 * 60 * 60 * 1000L);
+    private int tokenMaxKeys = Integer.getInteger("auth.token.maxKeys", 3);
+    private long tokenRotateMillis = Long.getLong("auth.token.rotateMillis", 0L);
+    private long tokenReloadMillis = Long.getLong("auth.token.reloadMillis", 60 * 1000L);
+
+    private UserStore userStore;
+    private String userStoreType = System.getProperty("auth.userstore", "postgres");
+    private String userStoreFile = System.getProperty("auth.userstore.file", replicaPath("users.db"));
     private String url = "jdbc:postgresql://localhost:5432/auth?user=postgres";
+    private int poolMinSize = Integer.getInteger("auth.db.pool.min", 2);
+    private int poolMaxSize = Integer.getInteger("auth.db.pool.max", Runtime.getRuntime().availableProcessors() * 2);
+    private long poolBorrowTimeoutMillis = Long.getLong("auth.db.pool.borrowTimeoutMillis", 5000L);
+    private long poolIdleTimeoutMillis = Long.getLong("auth.db.pool.idleTimeoutMillis", 60000L);
 
-    private Server() {
-        try {
-            Class.forName("org.postgresql.Driver");
-            connection = DriverManager.getConnection(url);
-        } catch (Exception e){
-            System.out.println("Connection to the DB could not be established...");
-            e.printStackTrace();
+    private UsernameFilter usernameFilter;
+    // A replica's filter would only learn the users registered on that replica, so replicas always look users up
+    private boolean usernameFilterEnabled = replicaId == null
+            && Boolean.parseBoolean(System.getProperty("auth.userfilter.enabled", "true"));
+    private long usernameFilterExpected = Long.getLong("auth.userfilter.expected", 1000000L);
+    private double usernameFilterFpp = Double.parseDouble(System.getProperty("auth.userfilter.fpp", "0.01"));
+
+    private BatchRegistrar batchRegistrar;
+    private int batchChunkSize = Integer.getInteger("auth.batch.chunk", 500);
+    private int batchMaxSize = Integer.getInteger("auth.batch.max", 1000);
+    private int batchMaxOperations = Integer.getInteger("auth.batch.maxOperations", 1000);
+    private int batchInFlight = Integer.getInteger("auth.batch.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    private HashingExecutor hashingExecutor;
+    private HashParams hashParams;
+    private String hashAlgorithm = System.getProperty("auth.hash.algorithm", HashParams.LEGACY.getAlgorithm());
+    private int hashKeyBits = Integer.getInteger("auth.hash.keyBits", HashParams.LEGACY.getKeyBits());
+    private Integer hashIterations = Integer.getInteger("auth.hash.iterations");
+    private long hashTargetMillis = Long.getLong("auth.hash.targetMillis", 50L);
+    private int hashThreads = Integer.getInteger("auth.hash.threads", Runtime.getRuntime().availableProcessors());
+    private int hashQueueCapacity = Integer.getInteger("auth.hash.queue", hashThreads * 16);
+    private long hashTimeoutMillis = Long.getLong("auth.hash.timeoutMillis", 10000L);
+
+    private boolean loginRateLimitEnabled = Boolean.parseBoolean(System.getProperty("auth.ratelimit.enabled", "true"));
+    private int loginRateLimitMaxKeys = Integer.getInteger("auth.ratelimit.maxKeys", 100000);
+    private long loginRateLimitSweepMillis = Long.getLong("auth.ratelimit.sweepMillis", 60000L);
+    private final RateLimiter userLoginLimiter = !loginRateLimitEnabled ? null : new RateLimiter("user-login",
+            Integer.getInteger("auth.ratelimit.user.perMinute", 10), Integer.getInteger("auth.ratelimit.user.burst", 5),
+            loginRateLimitMaxKeys, loginRateLimitSweepMillis);
+    private final RateLimiter hostLoginLimiter = !loginRateLimitEnabled ? null : new RateLimiter("host-login",
+            Integer.getInteger("auth.ratelimit.host.perMinute", 120),
+            Integer.getInteger("auth.ratelimit.host.burst", 30), loginRateLimitMaxKeys, loginRateLimitSweepMillis);
+
+    private int eventDeliveryThreads = Integer.getInteger("auth.events.threads", 4);
+    private int eventMaxPerUser = Integer.getInteger("auth.events.maxPerUser", 4);
+    private int eventMaxSubscribers = Integer.getInteger("auth.events.maxSubscribers", 1000);
+    private final PrinterEventPublisher printerEvents = new PrinterEventPublisher(eventDeliveryThreads, eventMaxPerUser,
+            eventMaxSubscribers);
+
+    private boolean tunedSockets = Boolean.getBoolean("auth.rmi.tuned");
+
+    private AuditLog auditLog;
+    private String auditSinkType = System.getProperty("auth.audit.sink", "file");
+    private String auditDir = System.getProperty("auth.audit.dir", replicaPath("audit"));
+    private long auditMaxBytes = Long.getLong("auth.audit.maxBytes", 64L * 1024 * 1024);
+    private int auditMaxFiles = Integer.getInteger("auth.audit.maxFiles", 10);
+    private boolean auditSync = Boolean.getBoolean("auth.audit.sync");
+    private int auditCapacity = Integer.getInteger("auth.audit.capacity", 65536);
+    private int auditBatchSize = Integer.getInteger("auth.audit.batch", 512);
+    private long auditFlushMillis = Long.getLong("auth.audit.flushMillis", 200L);
+    private boolean auditBlock = "block".equals(System.getProperty("auth.audit.overflow", "drop"));
+    private long auditBlockMillis = Long.getLong("auth.audit.blockMillis", 100L);
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    Server() {
+        metrics.gauge("queueDepth", () -> printQueue == null ? 0 : printQueue.size());
+        metrics.gauge("activeSessions", () -> sessions instanceof SessionStore ? ((SessionStore) sessions).size() : -1);
+        metrics.gauge("hashQueueWaitMillisTotal",
+                () -> hashingExecutor == null ? 0 : hashingExecutor.getTotalQueueWaitNanos() / 1e6);
+        metrics.gauge("hashMillisTotal", () -> hashingExecutor == null ? 0 : hashingExecutor.getTotalHashNanos() / 1e6);
+        metrics.gauge("hashIterations", () -> hashParams == null ? 0 : hashParams.getIterations());
+        metrics.gauge("hashRejected", () -> hashingExecutor == null ? 0 : hashingExecutor.getRejectedCount());
+        metrics.gauge("configVersion", () -> config == null ? 0 : config.snapshot().getVersion());
+        metrics.gauge("eventSubscribers", printerEvents::getSubscriberCount);
+        metrics.gauge("printersBusy", () -> printScheduler == null ? 0 : printScheduler.getBusyCount());
+        metrics.gauge("printJobsPrinted", () -> printScheduler == null ? 0 : printScheduler.getPrintedCount());
+        metrics.gauge("printJobsFailed", () -> printScheduler == null ? 0 : printScheduler.getFailedCount());
+        metrics.gauge("printJobsStolen", () -> printScheduler == null ? 0 : printScheduler.getStolenCount());
+        metrics.report("printers", () -> printScheduler == null ? "Print dispatch is off." : printScheduler.describe());
+        if (loginRateLimitEnabled) {
+            metrics.gauge("loginRateLimitedUser", userLoginLimiter::getRejectedCount);
+            metrics.gauge("loginRateLimitedHost", hostLoginLimiter::getRejectedCount);
+            metrics.gauge("loginRateLimitKeys", () -> userLoginLimiter.getTrackedKeys()
+                    + hostLoginLimiter.getTrackedKeys());
+        }
+        metrics.gauge("dbMillisTotal", () -> (metrics.operation("db.find").getLatency().getTotalNanos()
+                + metrics.operation("db.insert").getLatency().getTotalNanos()
+                + metrics.operation("db.insertBatch").getLatency().getTotalNanos()
+                + metrics.operation("db.update").getLatency().getTotalNanos()) / 1e6);
+        if (tunedSockets) {
+            metrics.gauge("rmiConnections", ConnectionStats::getOpenCount);
+            metrics.gauge("rmiBytesIn", ConnectionStats::getBytesRead);
+            metrics.gauge("rmiBytesOut", ConnectionStats::getBytesWritten);
+            metrics.gauge("rmiWireBytesIn", ConnectionStats::getWireBytesRead);
+            metrics.gauge("rmiWireBytesOut", ConnectionStats::getWireBytesWritten);
+            metrics.gauge("rmiTurnaroundP99Millis",
+                    () -> ConnectionStats.getTurnaroundLatency().getPercentileNanos(99) / 1e6);
+            metrics.gauge("rmiTlsFullHandshakes", ConnectionStats::getTlsFullHandshakes);
+            metrics.gauge("rmiTlsResumed", ConnectionStats::getTlsResumed);
+            metrics.report("connections", () -> ConnectionStats.summary() + "\n" + ConnectionStats.describeOpen());
         }
+        metrics.gauge("auditPending", () -> auditLog == null ? 0 : auditLog.getPending());
+        metrics.gauge("auditDropped", () -> auditLog == null ? 0 : auditLog.getDropped());
+        metrics.gauge("auditWritten", () -> auditLog == null ? 0 : auditLog.getWritten());
+        metrics.gauge("auditLost", () -> auditLog == null ? 0 : auditLog.getLost());
+        metrics.gauge("auditAvgBatch", () -> auditLog == null ? 0 : auditLog.getAverageBatch());
+        metrics.report("audit", () -> auditLog == null ? "Audit log is off." : auditLog.stats());
     }
 
     /**
-     * Stores a new user with password and salt in the DB
+     * Stores a new user with password and salt in the user store
      * @param username String
      * @param pswd String
      * @return String
@@ -43,45 +179,51 @@ public class Server implements RemoteInterface {
      */
     @Override
     public String register(String username, String pswd) throws RemoteException {
+        if(!isValidUsername(username) || !enterRequest()){
+            return null;
+        }
         try {
-            // Ensure there's no user already registered with this username
-            String selectSQL = "SELECT password, salt FROM users WHERE username=?";
-            PreparedStatement selectStmt = connection.prepareStatement(selectSQL);
-            selectStmt.setString(1, username);
-            ResultSet rs = selectStmt.executeQuery();
-            if(rs.next()) {
+            // Ensure there's no user already registered with this username. A filter miss means there is none, so the
+            // lookup can be skipped
+            if(mightBeRegistered(username) && userStore.find(username) != null) {
                 // User with this username exists, so return NULL and do not proceed with registration
-                System.out.println("User with username \"" + username + "\" already registered!");
+                audit(AuditEvent.Type.REGISTER, "exists", username, null);
                 return null;
             }
 
             // Encrypt the password
-            byte[] salt = generateSalt();
-            byte[] encryptedPswd = getEncryptedPswd(pswd, salt);
+            byte[] salt = PasswordHasher.generateSalt();
+            HashParams params = hashParams;
+            byte[] encryptedPswd = getEncryptedPswd(pswd, salt, params);
+
+            // Store encrypted pswd, salt and hash parameters in the user store
+            if(!userStore.insert(new UserRecord(username, encryptedPswd, salt, params))) {
+                audit(AuditEvent.Type.REGISTER, "exists", username, null);
+                return null;
+            }
 
-            // Store encrypted pswd and salt in the DB
-            String insertSQL = "INSERT INTO users(username, password, salt) VALUES (?, ?, ?)";
-            PreparedStatement insertStmt = connection.prepareStatement(insertSQL);
-            insertStmt.setString(1, username);
-            insertStmt.setBytes(2, encryptedPswd);
-            insertStmt.setBytes(3, salt);
-            insertStmt.executeUpdate();
+            if(usernameFilter != null) {
+                usernameFilter.add(username);
+            }
 
+            audit(AuditEvent.Type.REGISTER, "ok", username, null);
             // give the user an authentication sessions key
-            SecureRandom random = new SecureRandom();
-            String sessionKey = new BigInteger(130, random).toString(32);
-            sessions.put(username, sessionKey);
-            return sessionKey;
+            return sessions.create(username);
 
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | SQLException e) {
-            System.out.println("Could not encrypt and store the password.");
-            e.printStackTrace();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | UserStoreException e) {
+            audit(AuditEvent.Type.REGISTER, "error", username, describe(e));
+            return null;
+        } catch (RejectedExecutionException e) {
+            audit(AuditEvent.Type.REGISTER, "busy", username, e.getMessage());
             return null;
+        } finally {
+            exitRequest();
         }
     }
 
     /**
-     * Gets the bytes-encrypted password for a given username from the DB and checks it against a given string password
+     * Gets the bytes-encrypted password for a given username from the user store and checks it against a given
+     * string password
      * @param username String
      * @param pswd String
      * @return String
@@ -89,41 +231,83 @@ public class Server implements RemoteInterface {
      */
     @Override
     public String authenticate(String username, String pswd) throws RemoteException {
-        byte[] encryptedPswd = new byte[0], salt = new byte[0];
-        try {
-            String sql = "SELECT password, salt FROM users WHERE username=?";
-            PreparedStatement stmt = connection.prepareStatement(sql);
-            stmt.setString(1, username);
-            ResultSet rs = stmt.executeQuery();
+        // Throttled before any lookup or hashing; rejections are only counted, not logged, to stay cheap under attack
+        if(!acquireLoginPermit(username)) {
+            return null;
+        }
 
-            while (rs.next()) {
-                encryptedPswd = rs.getBytes("password");
-                salt = rs.getBytes("salt");
+        if(!isValidUsername(username) || !enterRequest()){
+            return null;
+        }
+        try {
+            UserRecord user = mightBeRegistered(username) ? userStore.find(username) : null;
+            if(user == null) {
+                audit(AuditEvent.Type.LOGIN, "unknownUser", username, null);
+                return null;
             }
 
-            if(encryptedPswd.length == 0 && salt.length == 0) {
-                System.out.println("No such user with username: " + username);
+            if(!authenticatePswd(pswd, user.getPassword(), user.getSalt(), user.getHashParams())){
+                audit(AuditEvent.Type.LOGIN, "badPassword", username, null);
                 return null;
             }
 
-            if(!authenticatePswd(pswd, encryptedPswd, salt)){
-                System.out.println("Wrong username or password!");
-                return null;
+            if(user.getHashParams().needsRehash(hashParams)) {
+                rehash(username, pswd);
             }
 
+            audit(AuditEvent.Type.LOGIN, "ok", username, null);
             // give the user an authentication sessions key
-            SecureRandom random = new SecureRandom();
-            String sessionKey = new BigInteger(130, random).toString(32);
-            sessions.put(username, sessionKey);
-            return sessionKey;
+            return sessions.create(username);
 
-        } catch (SQLException | NoSuchAlgorithmException | InvalidKeySpecException e) {
-            System.out.println("Could not fetch user or user does not exist");
-            e.printStackTrace();
+        } catch (UserStoreException | NoSuchAlgorithmException | InvalidKeySpecException e) {
+            audit(AuditEvent.Type.LOGIN, "error", username, describe(e));
+            return null;
+        } catch (RejectedExecutionException e) {
+            audit(AuditEvent.Type.LOGIN, "busy", username, e.getMessage());
             return null;
+        } finally {
+            exitRequest();
         }
     }
 
+    /**
+     * Registers many users in one call, encrypting their passwords on the hashing pool and storing them in batches.
+     * Unlike register(), no sessions are opened for the new users. The caller must be logged in, a batch holds at most
+     * "auth.batch.max" users and each call takes a permit of the calling host's login rate limiter. The lifecycle lock
+     * is only held while the user store is used, not while passwords are encrypted.
+     * @param credentials List<String[]> One {username, password} pair per user
+     * @return List<String> One "username: outcome" line per user, in input order
+     * @throws RemoteException
+     */
+    @Override
+    public List<String> registerBatch(List<String[]> credentials, String sessionKey) throws RemoteException {
+        if(credentials == null) {
+            return Collections.emptyList();
+        }
+        if(!enterRequest()){
+            return failAll(credentials, SERVER_OFF);
+        }
+        BatchRegistrar registrar;
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return failAll(credentials, NOT_AUTHENTICATED);
+            }
+            if(credentials.size() > batchMaxSize) {
+                return failAll(credentials, "failed (more than " + batchMaxSize + " users in one batch)");
+            }
+            if(loginRateLimitEnabled && !hostLoginLimiter.tryAcquire(clientHost())) {
+                return failAll(credentials, "failed (too many requests, try again later)");
+            }
+            registrar = batchRegistrar;
+        } finally {
+            exitRequest();
+        }
+
+        List<String> results = new ArrayList<>(credentials.size());
+        registrar.register(credentials.iterator(), results::add);
+        return results;
+    }
+
     /**
      * Prints file "filename" on the specified "printer"
      *
@@ -134,12 +318,18 @@ public class Server implements RemoteInterface {
      */
     @Override
     public String print(String filename, String printer, String sessionKey) throws RemoteException {
-        if(!verifyUserSessionAuthenticated(sessionKey)){
-            return "Not authenticated!";
+        if(!enterRequest()){
+            return SERVER_OFF;
         }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
 
-        printQueue.add(filename);
-        return "\"" + filename + "\" was added to the print queue.";
+            return doPrint(filename, printer, sessions.getUsername(sessionKey)).getMessage();
+        } finally {
+            exitRequest();
+        }
     }
 
     /**
@@ -150,39 +340,74 @@ public class Server implements RemoteInterface {
      */
     @Override
     public String queue(String sessionKey) throws RemoteException {
-        if(!verifyUserSessionAuthenticated(sessionKey)){
-            return "Not authenticated!";
+        if(!enterRequest()){
+            return SERVER_OFF;
+        }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
+
+            String topLine = "List of files on the queue:";
+            if(printQueue.isEmpty()){
+                return topLine + "\n -- empty --";
+            }
+            return constructListOfFiles(topLine);
+        } finally {
+            exitRequest();
+        }
+    }
+
+    /**
+     * Lists a bounded page of the print printQueue, from top to bottom
+     *
+     * @param cursor String The cursor of the previous page, or null to start at the top of the queue
+     * @param limit int Maximum number of jobs on the page, capped at MAX_QUEUE_PAGE_SIZE
+     * @return QueuePage The page, or a failed page if the server is OFF, the session is not authenticated or the
+     * cursor is malformed
+     * @throws RemoteException
+     */
+    @Override
+    public QueuePage queue(String cursor, int limit, String sessionKey) throws RemoteException {
+        if(!enterRequest()){
+            return QueuePage.failed(SERVER_OFF);
         }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return QueuePage.failed(NOT_AUTHENTICATED);
+            }
 
-        String topLine = "List of files on the queue:";
-        if(printQueue.size() == 0){
-            return topLine + "\n -- empty --";
+            try {
+                return printQueue.page(cursor, Math.max(1, Math.min(limit, MAX_QUEUE_PAGE_SIZE)));
+            } catch (IllegalArgumentException e) {
+                return QueuePage.failed("The queue cursor is not valid.");
+            }
+        } finally {
+            exitRequest();
         }
-        return constructListOfFiles(topLine);
     }
 
     /**
      * Moves "job" to the top of the printQueue
      *
-     * @param jobID int
+     * @param jobID int The ID the job was given when it was queued
      * @return String
      * @throws RemoteException
      */
     @Override
     public String topQueue(int jobID, String sessionKey) throws RemoteException {
-        if(!verifyUserSessionAuthenticated(sessionKey)){
-            return "Not authenticated!";
+        if(!enterRequest()){
+            return SERVER_OFF;
         }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
 
-        if (jobID >= printQueue.size()){
-            return "Print job with ID " + jobID + " does not exist.";
+            return doTopQueue(jobID, sessions.getUsername(sessionKey)).getMessage();
+        } finally {
+            exitRequest();
         }
-
-        String fileToMove = printQueue.get(jobID);
-        printQueue.remove(jobID);
-        printQueue.add(0, fileToMove);
-
-        return constructListOfFiles("The file \""+fileToMove+"\" has been moved to top of the queue. Now the queue is:");
     }
 
     /**
@@ -193,67 +418,108 @@ public class Server implements RemoteInterface {
      */
     @Override
     public String start() throws IOException {
+        lifecycle.writeLock().lock();
         try {
-            Class.forName("org.postgresql.Driver");
-            connection = DriverManager.getConnection(url);
+            if (running) {
+                return "The print server is already ON.";
+            }
+            userStore = createUserStore();
+            usernameFilter = usernameFilterEnabled ? buildUsernameFilter() : null;
 
-            printQueue = new ArrayList<>();
-            config = new HashMap<>();
-            sessions = new HashMap<>();
+            printQueue = createPrintQueue();
+            config = ConfigStore.open(new File(configFile));
+            sessions = createSessionManager();
+            hashingExecutor = new HashingExecutor(hashThreads, hashQueueCapacity, hashTimeoutMillis);
+            hashParams = createHashParams();
+            batchRegistrar = new BatchRegistrar(userStore, usernameFilter, batchChunkSize, hashingExecutor,
+                    batchInFlight, hashParams, lifecycle.readLock());
+            auditLog = createAuditLog();
+            printScheduler = createPrintScheduler(printQueue);
+            running = true;
             printerStatus = "ON";
+            publishPrinterState();
+            audit(AuditEvent.Type.LIFECYCLE, "start", null, null);
 
             return "The print server has been started.";
         } catch (Exception e){
-            System.out.println("Connection to the DB could not be established...");
-            e.printStackTrace();
-            return "The print server could not be started because DB connection problems...";
+            audit(AuditEvent.Type.LIFECYCLE, "error", null, "start: " + describe(e));
+            // undo whatever was already opened, so a later start() begins from scratch
+            shutdownState();
+            System.out.println("The print server could not be started: " + describe(e));
+            return "The print server could not be started: " + e;
+        } finally {
+            lifecycle.writeLock().unlock();
         }
     }
 
     /**
-     * Stops the print server
+     * Stops the print server, once the requests already running have finished
      *
      * @return String
      * @throws RemoteException
      */
     @Override
     public String stop(String sessionKey) throws RemoteException, SQLException {
-        if(!verifyUserSessionAuthenticated(sessionKey)){
-            return "Not authenticated!";
+        String refused = checkLifecycleCaller(sessionKey);
+        if (refused != null) {
+            return refused;
         }
-
-        printQueue = null;
-        config = null;
-        sessions = null;
-        printerStatus = "OFF";
+        lifecycle.writeLock().lock();
         try {
-            connection.close();
-        } catch (SQLException e){
-            e.printStackTrace();
-            return "An error occurred while stopping the server...";
+            // checked again, the server may have been stopped or restarted since
+            if (!running) {
+                return SERVER_OFF;
+            }
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
+
+            audit(AuditEvent.Type.LIFECYCLE, "stop", sessions.getUsername(sessionKey), null);
+            shutdownState();
+            return "The print server has been stopped.";
+        } finally {
+            lifecycle.writeLock().unlock();
         }
-        return "The print server has been stopped.";
     }
 
     /**
-     * Restarts the print server, clears the print printQueue and starts the print server again
+     * Restarts the print server. In "hot" mode (the default, see "auth.restart.mode") the printer state is reloaded
+     * and swapped in while sessions, the user store and its connections are kept; in "cold" mode the server is
+     * stopped and started again, logging every user out.
      *
      * @return String
      * @throws IOException
      */
     @Override
     public String restart(String sessionKey) throws IOException, SQLException {
-        if(!verifyUserSessionAuthenticated(sessionKey)){
-            return "Not authenticated!";
+        String refused = checkLifecycleCaller(sessionKey);
+        if (refused != null) {
+            return refused;
         }
-
+        lifecycle.writeLock().lock();
         try {
-            String output = stop(sessionKey) + "\n";
-            output += start();
-            return output;
-        } catch (SQLException e){
-            e.printStackTrace();
-            return "An error occurred while stopping the server...";
+            // checked again, the server may have been stopped or restarted since
+            if (!running) {
+                return SERVER_OFF;
+            }
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
+
+            String username = sessions.getUsername(sessionKey);
+            audit(AuditEvent.Type.LIFECYCLE, "restart", username, restartMode);
+            if (!"cold".equals(restartMode)) {
+                return hotRestart(username);
+            }
+            try {
+                shutdownState();
+            } catch (RuntimeException e) {
+                audit(AuditEvent.Type.LIFECYCLE, "error", username, "restart: " + describe(e));
+                return "An error occurred while stopping the server...";
+            }
+            return "The print server has been stopped.\n" + start();
+        } finally {
+            lifecycle.writeLock().unlock();
         }
     }
 
@@ -268,6 +534,74 @@ public class Server implements RemoteInterface {
         return printerStatus;
     }
 
+    /**
+     * Lists every printer with its status and queue depth
+     *
+     * @return List<PrinterStatus>
+     * @throws RemoteException
+     */
+    @Override
+    public List<PrinterStatus> printers() throws RemoteException {
+        if(!enterRequest()){
+            return Collections.emptyList();
+        }
+        try {
+            return printScheduler == null ? Collections.<PrinterStatus>emptyList() : printScheduler.statuses();
+        } finally {
+            exitRequest();
+        }
+    }
+
+    /**
+     * Subscribes a listener to printer status and queue changes, up to "auth.events.maxPerUser" listeners per user
+     *
+     * @param listener PrinterEventListener
+     * @return String The current printer status, or why the listener was not subscribed
+     * @throws RemoteException
+     */
+    @Override
+    public String subscribe(PrinterEventListener listener, String sessionKey) throws RemoteException {
+        if(!enterRequest()){
+            return SERVER_OFF;
+        }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
+
+            if(listener == null || !printerEvents.subscribe(listener, sessions.getUsername(sessionKey))) {
+                return TOO_MANY_SUBSCRIPTIONS;
+            }
+            return printerStatus;
+        } finally {
+            exitRequest();
+        }
+    }
+
+    /**
+     * Stops sending printer events to a listener the user subscribed
+     *
+     * @param listener PrinterEventListener
+     * @return String
+     * @throws RemoteException
+     */
+    @Override
+    public String unsubscribe(PrinterEventListener listener, String sessionKey) throws RemoteException {
+        if(!enterRequest()){
+            return SERVER_OFF;
+        }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
+
+            return printerEvents.unsubscribe(listener, sessions.getUsername(sessionKey))
+                    ? "Unsubscribed from printer events." : "The listener is not subscribed.";
+        } finally {
+            exitRequest();
+        }
+    }
+
     /**
      * Prints the value of the "parameter" on the user's display
      *
@@ -277,14 +611,18 @@ public class Server implements RemoteInterface {
      */
     @Override
     public String readConfig(String parameter, String sessionKey) throws RemoteException {
-        if(!verifyUserSessionAuthenticated(sessionKey)){
-            return "Not authenticated!";
+        if(!enterRequest()){
+            return SERVER_OFF;
         }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
 
-        if(config.get(parameter) == null){
-            return "No configuration with key \"" + parameter + "\"";
+            return doReadConfig(parameter).getMessage();
+        } finally {
+            exitRequest();
         }
-        return parameter + ": " + config.get(parameter);
     }
 
     /**
@@ -297,27 +635,614 @@ public class Server implements RemoteInterface {
      */
     @Override
     public String setConfig(String parameter, String value, String sessionKey) throws RemoteException {
-        if(!verifyUserSessionAuthenticated(sessionKey)){
-            return "Not authenticated!";
+        if(!enterRequest()){
+            return SERVER_OFF;
         }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
 
-        config.put(parameter, value);
-        return "Done! :)";
+            return doSetConfig(parameter, value, sessions.getUsername(sessionKey)).getMessage();
+        } finally {
+            exitRequest();
+        }
+    }
+
+    /**
+     * Sets several parameters atomically
+     *
+     * @param parameters Map<String, String> New values by parameter; a null value removes the parameter
+     * @return String
+     * @throws RemoteException
+     */
+    @Override
+    public String setConfig(Map<String, String> parameters, String sessionKey) throws RemoteException {
+        if(!enterRequest()){
+            return SERVER_OFF;
+        }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return NOT_AUTHENTICATED;
+            }
+
+            String username = sessions.getUsername(sessionKey);
+            try {
+                long version = config.update(parameters);
+                audit(AuditEvent.Type.SET_CONFIG, "ok", username, parameters.keySet() + " -> version " + version);
+                return "Done! :) Configuration is now at version " + version + ".";
+            } catch (IOException e) {
+                audit(AuditEvent.Type.SET_CONFIG, "error", username, parameters.keySet() + ": " + e);
+                return "Could not save the configuration, nothing was changed.";
+            }
+        } finally {
+            exitRequest();
+        }
+    }
+
+    /**
+     * Reads every parameter as one consistent version of the configuration
+     *
+     * @return ConfigStore.Snapshot The configuration, or null if not authenticated
+     * @throws RemoteException
+     */
+    @Override
+    public ConfigStore.Snapshot readConfig(String sessionKey) throws RemoteException {
+        if(!enterRequest()){
+            return null;
+        }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return null;
+            }
+
+            return config.snapshot();
+        } finally {
+            exitRequest();
+        }
+    }
+
+    /**
+     * Runs several operations under a single session check. A batch holds at most "auth.batch.maxOperations"
+     * operations, so one call cannot keep the server busy for an unbounded time.
+     *
+     * @param operations List<BatchOperation>
+     * @return List<OperationResult> One result per operation, in order; every operation fails with SERVER_OFF or
+     * NOT_AUTHENTICATED if the server is OFF or the session is not authenticated, or when there are too many
+     * @throws RemoteException
+     */
+    @Override
+    public List<OperationResult> batch(List<BatchOperation> operations, String sessionKey) throws RemoteException {
+        if(operations == null) {
+            return Collections.emptyList();
+        }
+        if(operations.size() > batchMaxOperations) {
+            return Collections.nCopies(operations.size(),
+                    OperationResult.failed("More than " + batchMaxOperations + " operations in one batch."));
+        }
+        if(!enterRequest()){
+            return Collections.nCopies(operations.size(), OperationResult.failed(SERVER_OFF));
+        }
+        try {
+            if(!verifyUserSessionAuthenticated(sessionKey)){
+                return Collections.nCopies(operations.size(), OperationResult.failed(NOT_AUTHENTICATED));
+            }
+
+            String username = sessions.getUsername(sessionKey);
+            List<OperationResult> results = new ArrayList<>(operations.size());
+            for (BatchOperation operation : operations) {
+                if (operation == null) {
+                    results.add(OperationResult.failed("No operation given."));
+                    continue;
+                }
+                try {
+                    switch (operation.getType()) {
+                        case PRINT:
+                            results.add(doPrint(operation.arg(0), operation.arg(1), username));
+                            break;
+                        case TOP_QUEUE:
+                            results.add(doTopQueue(Integer.parseInt(operation.arg(0)), username));
+                            break;
+                        case READ_CONFIG:
+                            results.add(doReadConfig(operation.arg(0)));
+                            break;
+                        case SET_CONFIG:
+                            results.add(doSetConfig(operation.arg(0), operation.arg(1), username));
+                            break;
+                        default:
+                            results.add(OperationResult.failed("Unsupported operation " + operation.getType()));
+                    }
+                } catch (RuntimeException e) {
+                    results.add(OperationResult.failed(operation.getType() + " failed: " + e));
+                }
+            }
+            return results;
+        } finally {
+            exitRequest();
+        }
+    }
+
+    private OperationResult doPrint(String filename, String printer, String username) {
+        String target = printer;
+        if (printScheduler != null) {
+            target = printScheduler.resolve(printer);
+            if (target == null) {
+                audit(AuditEvent.Type.PRINT, "noSuchPrinter", username, filename + " on " + printer);
+                return OperationResult.failed("There is no printer \"" + printer + "\".");
+            }
+        }
+        PrintJob job;
+        try {
+            job = printQueue.enqueue(filename, username, target, 0);
+        } catch (UncheckedIOException e) {
+            audit(AuditEvent.Type.PRINT, "error", username, filename + " on " + printer + ": " + e.getCause());
+            return OperationResult.failed("\"" + filename + "\" could not be saved to the print queue.");
+        }
+        audit(AuditEvent.Type.PRINT, "ok", username, filename + " on " + target + " as job " + job.getId());
+        if (printScheduler != null) {
+            printScheduler.submit(job);
+        }
+        publishPrinterState();
+        return OperationResult.ok("\"" + filename + "\" was added to the print queue as job " + job.getId() + ".");
+    }
+
+    private OperationResult doTopQueue(int jobID, String username) {
+        PrintJob moved;
+        try {
+            moved = printQueue.moveToTop(jobID);
+        } catch (UncheckedIOException e) {
+            audit(AuditEvent.Type.TOP_QUEUE, "error", username, "job " + jobID + ": " + e.getCause());
+            return OperationResult.failed("Print job " + jobID + " could not be moved.");
+        }
+        if (moved == null){
+            audit(AuditEvent.Type.TOP_QUEUE, "noSuchJob", username, "job " + jobID);
+            return OperationResult.failed("Print job with ID " + jobID + " does not exist.");
+        }
+        audit(AuditEvent.Type.TOP_QUEUE, "ok", username, "job " + jobID);
+        if (printScheduler != null) {
+            printScheduler.reposition(moved);
+        }
+        return OperationResult.ok("The file \"" + moved.getFilename() + "\" (job " + moved.getId()
+                + ") has been moved to top of the queue.");
+    }
+
+    private OperationResult doReadConfig(String parameter) {
+        String value = config.get(parameter);
+        if(value == null){
+            return OperationResult.failed("No configuration with key \"" + parameter + "\"");
+        }
+        return OperationResult.ok(parameter + ": " + value);
+    }
+
+    private OperationResult doSetConfig(String parameter, String value, String username) {
+        try {
+            config.set(parameter, value);
+            audit(AuditEvent.Type.SET_CONFIG, "ok", username, parameter);
+            return OperationResult.ok("Done! :)");
+        } catch (IOException e) {
+            audit(AuditEvent.Type.SET_CONFIG, "error", username, parameter + ": " + e);
+            return OperationResult.failed("Could not save \"" + parameter + "\", nothing was changed.");
+        }
+    }
+
+    /**
+     * Reloads the configuration and, when durable, the print queue from disk and swaps them in. Runs under the
+     * lifecycle write lock, so requests already running finish first and new ones wait for the swap instead of
+     * failing. Sessions, the user store, its connection pool and the worker pools are kept.
+     * @param username String The user who asked for the restart
+     * @return String
+     */
+    private String hotRestart(String username) {
+        ConfigStore reloadedConfig;
+        try {
+            reloadedConfig = ConfigStore.open(new File(configFile));
+        } catch (IOException e) {
+            audit(AuditEvent.Type.LIFECYCLE, "error", username, "reloading the configuration: " + describe(e));
+            return "The configuration could not be reloaded, the previous state is kept.";
+        }
+
+        if (queueJournal != null) {
+            // the printers and then the old journal must be stopped before the log directory is recovered again
+            shutdownPrintScheduler();
+            queueJournal.close();
+            queueJournal = null;
+            try {
+                printQueue = createPrintQueue();
+                printScheduler = createPrintScheduler(printQueue);
+            } catch (IOException | ReflectiveOperationException e) {
+                // logged before shutdownState() closes the audit log
+                audit(AuditEvent.Type.LIFECYCLE, "error", username, "reloading the print queue: " + describe(e));
+                shutdownState();
+                return "The print queue could not be reloaded, the print server has been stopped.";
+            }
+        }
+        config = reloadedConfig;
+        publishPrinterState();
+        return "The print server has been restarted, sessions were kept.";
+    }
+
+    /**
+     * Releases everything start() created and turns the printer OFF. The caller must hold the lifecycle write lock.
+     */
+    private void shutdownState() {
+        running = false;
+        shutdownPrintScheduler();
+        printQueue = null;
+        if (queueJournal != null) {
+            queueJournal.close();
+            queueJournal = null;
+        }
+        config = null;
+        if (sessions != null) {
+            sessions.shutdown();
+            sessions = null;
+        }
+        if (hashingExecutor != null) {
+            hashingExecutor.shutdown();
+            hashingExecutor = null;
+        }
+        if (batchRegistrar != null) {
+            batchRegistrar.shutdown();
+            batchRegistrar = null;
+        }
+        printerStatus = "OFF";
+        publishPrinterState();
+        if (userStore != null) {
+            userStore.close();
+            userStore = null;
+        }
+        usernameFilter = null;
+        if (auditLog != null) {
+            auditLog.close();
+            auditLog = null;
+        }
+    }
+
+    /**
+     * Stops every printer, leaving the job each was printing on the print queue
+     */
+    private void shutdownPrintScheduler() {
+        if (printScheduler != null) {
+            printScheduler.shutdown();
+            printScheduler = null;
+        }
+    }
+
+    /**
+     * Enters a request that uses the server's state. Until the matching exitRequest() the server cannot be stopped or
+     * restarted underneath it.
+     * @return True/False False if the server is OFF, in which case exitRequest() must not be called
+     */
+    private boolean enterRequest() {
+        lifecycle.readLock().lock();
+        if (!running) {
+            lifecycle.readLock().unlock();
+            return false;
+        }
+        return true;
+    }
+
+    private void exitRequest() {
+        lifecycle.readLock().unlock();
+    }
+
+    /**
+     * Checks a stop() or restart() caller under the read lock, so a caller who may not do either never waits for,
+     * or blocks, the running requests
+     * @param sessionKey String
+     * @return String Why the caller is refused, or null if the write lock may be taken
+     */
+    private String checkLifecycleCaller(String sessionKey) {
+        if (!enterRequest()) {
+            return SERVER_OFF;
+        }
+        try {
+            return verifyUserSessionAuthenticated(sessionKey) ? null : NOT_AUTHENTICATED;
+        } finally {
+            exitRequest();
+        }
+    }
+
+    /**
+     * @param credentials List<String[]>
+     * @param outcome String
+     * @return List<String> The registerBatch() result of every user when the whole batch is refused
+     */
+    private static List<String> failAll(List<String[]> credentials, String outcome) {
+        List<String> results = new ArrayList<>(credentials.size());
+        for (String[] credential : credentials) {
+            results.add((credential == null || credential.length == 0 ? null : credential[0]) + ": " + outcome);
+        }
+        return results;
+    }
+
+    /**
+     * Tells subscribed clients about the current printer status and queue depth. Reading the state and publishing it
+     * under one lock keeps the last published event in line with the latest change.
+     */
+    private void publishPrinterState() {
+        synchronized (printerEvents) {
+            PrintQueue queue = printQueue;
+            PrintScheduler scheduler = printScheduler;
+            printerEvents.publish(printerStatus, queue == null ? 0 : queue.size(),
+                    scheduler == null ? Collections.<PrinterStatus>emptyList() : scheduler.statuses());
+        }
+    }
+
+    /**
+     * Opens the user store selected by the "auth.userstore" system property: "postgres" (the default) for the
+     * Postgres DB, or "file" for the embedded memory-mapped file at "auth.userstore.file".
+     * @return UserStore
+     * @throws Exception if the store cannot be opened
+     */
+    private UserStore createUserStore() throws Exception {
+        if ("file".equals(userStoreType)) {
+            if (replicaId != null) {
+                System.out.println("Replica \"" + replicaId + "\" keeps its users in " + userStoreFile
+                        + ", unseen by other replicas; use the postgres user store to share them.");
+            }
+            if (hashKeyBits > MappedFileUserStore.MAX_KEY_BITS) {
+                throw new IllegalArgumentException("\"auth.hash.keyBits\" is " + hashKeyBits
+                        + ", the file user store holds password hashes of at most " + MappedFileUserStore.MAX_KEY_BITS
+                        + " bits");
+            }
+            return new TimedUserStore(new MappedFileUserStore(new File(userStoreFile)), metrics);
+        }
+
+        Class.forName("org.postgresql.Driver");
+        ConnectionPool pool = new ConnectionPool(url, poolMinSize, poolMaxSize, poolBorrowTimeoutMillis,
+                poolIdleTimeoutMillis);
+        metrics.gauge("dbPoolActive", pool::getActiveCount);
+        metrics.gauge("dbPoolWaiting", pool::getWaitingCount);
+        metrics.gauge("dbPoolAvgWaitMillis", pool::getAverageWaitMillis);
+        return new TimedUserStore(new PostgresUserStore(pool), metrics);
+    }
+
+    /**
+     * Creates the print queue: in memory, or durable when "auth.queue.durable" is set, in which case the jobs logged
+     * in "auth.queue.dir" are recovered and compacted into a fresh snapshot
+     * @return PrintQueue
+     * @throws IOException if the queue's log cannot be read or written
+     */
+    private PrintQueue createPrintQueue() throws IOException {
+        if (!queueDurable) {
+            return new PrintQueue();
+        }
+        queueJournal = new QueueJournal(new File(queueDir), queueCheckpointRecords);
+        PrintQueue queue = new PrintQueue(queueJournal);
+        queue.checkpoint();
+        return queue;
+    }
+
+    /**
+     * Starts dispatching the jobs of a print queue, unless "auth.printers.dispatch" is false. The printers listed in
+     * "auth.printers" as "name:class,..." (by default "default" and "printer1" to "printer4") are the only ones jobs
+     * can be sent to; printers that only recovered jobs still name are added for those jobs. Each printer takes its
+     * jobs in the order of "auth.printers.policy" and, with "auth.printers.steal", takes over jobs of busy printers of
+     * its class when it has none left. Printing is simulated: a job takes "auth.printers.jobMillis" plus its cost at
+     * "auth.printers.bytesPerSecond", the cost being the size of the file of the same name in
+     * "auth.printers.spoolDir", if set.
+     * @param queue PrintQueue
+     * @return PrintScheduler The scheduler, or null if dispatch is off
+     * @throws ReflectiveOperationException if the policy is neither built in nor a loadable class
+     */
+    private PrintScheduler createPrintScheduler(PrintQueue queue) throws ReflectiveOperationException {
+        if (!printDispatch) {
+            return null;
+        }
+        PrintScheduler scheduler = new PrintScheduler(queue, DispatchPolicy.named(printPolicy), printSteal,
+                this::estimatePrintCost, name -> PrintScheduler.simulated(printJobMillis, printBytesPerSecond),
+                this::jobDone);
+        for (String printer : printersConfig.split(",")) {
+            int separator = printer.indexOf(':');
+            String name = (separator < 0 ? printer : printer.substring(0, separator)).trim();
+            if (!name.isEmpty()) {
+                scheduler.addPrinter(name, separator < 0 ? PrintScheduler.DEFAULT
+                        : printer.substring(separator + 1).trim());
+            }
+        }
+        scheduler.dispatchQueued();
+        return scheduler;
+    }
+
+    /**
+     * @param job PrintJob
+     * @return long The size of the job's file in the spool directory, 0 if unknown
+     */
+    private long estimatePrintCost(PrintJob job) {
+        if (printSpoolDir == null || job.getFilename() == null) {
+            return 0;
+        }
+        // only the file name counts, so a job cannot point outside of the spool directory
+        return new File(printSpoolDir, new File(job.getFilename()).getName()).length();
+    }
+
+    /**
+     * Audits a job a printer is done with and tells subscribers about the new printer state
+     * @param job PrintJob
+     * @param printer String
+     * @param failure Exception
+     */
+    private void jobDone(PrintJob job, String printer, Exception failure) {
+        if (failure == null) {
+            audit(AuditEvent.Type.PRINT, "printed", job.getOwner(), job.getFilename() + " on " + printer + " as job "
+                    + job.getId());
+        } else {
+            audit(AuditEvent.Type.PRINT, "failed", job.getOwner(), job.getFilename() + " on " + printer + " as job "
+                    + job.getId() + ": " + failure);
+        }
+        publishPrinterState();
+    }
+
+    /**
+     * Picks the parameters new password hashes are derived with: "auth.hash.algorithm" and "auth.hash.keyBits", and
+     * either the fixed "auth.hash.iterations" or the iteration count calibrated on this machine so that one
+     * derivation takes about "auth.hash.targetMillis"
+     * @return HashParams
+     * @throws NoSuchAlgorithmException if the algorithm is not supported
+     * @throws InvalidKeySpecException
+     */
+    private HashParams createHashParams() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        if (Pbkdf2Engine.supports(hashAlgorithm)) {
+            System.out.println("Deriving " + hashAlgorithm + " keys with the " + Pbkdf2Engine.describe()
+                    + " PBKDF2 engine.");
+        }
+        if (hashIterations != null) {
+            return new HashParams(hashAlgorithm, hashIterations, hashKeyBits);
+        }
+        long start = System.nanoTime();
+        HashParams params = PasswordHasher.calibrate(hashAlgorithm, hashKeyBits, hashTargetMillis);
+        System.out.println("Calibrated password hashing to " + params + " for " + hashTargetMillis + "ms in "
+                + (System.nanoTime() - start) / 1000000 + "ms.");
+        return params;
+    }
+
+    /**
+     * Creates the session manager selected by the "auth.session.mode" system property: "store" (the default) keeps
+     * sessions in this server's memory, "token" issues HMAC-signed tokens that any server sharing the key ring file
+     * at "auth.token.keyring" can verify.
+     * @return SessionManager
+     * @throws IOException if the key ring file cannot be read
+     */
+    private SessionManager createSessionManager() throws IOException {
+        if ("token".equals(sessionMode)) {
+            File keyRing = tokenKeyRingFile == null ? null : new File(tokenKeyRingFile);
+            return new TokenSessionManager(keyRing, tokenTtlMillis, tokenMaxKeys, tokenRotateMillis, tokenReloadMillis);
+        }
+        return new SessionStore();
+    }
+
+    /**
+     * Opens the audit log selected by the "auth.audit.sink" system property: "file" (the default) for rolling files
+     * in "auth.audit.dir", "db" for the audit_log table of the Postgres DB, "console" for standard output or "none"
+     * for no audit log at all. Whatever the sink, events are written in the background; "auth.audit.overflow"
+     * chooses between dropping ("drop") and briefly waiting ("block") when they arrive faster than that.
+     * @return AuditLog The audit log, or null if it is off
+     * @throws Exception if the sink cannot be opened
+     */
+    private AuditLog createAuditLog() throws Exception {
+        AuditSink sink;
+        if ("none".equals(auditSinkType)) {
+            return null;
+        } else if ("console".equals(auditSinkType)) {
+            sink = new AuditLog.ConsoleSink();
+        } else if ("db".equals(auditSinkType)) {
+            Class.forName("org.postgresql.Driver");
+            sink = new PostgresAuditSink(new ConnectionPool(url, 1, 2, poolBorrowTimeoutMillis,
+                    poolIdleTimeoutMillis));
+        } else {
+            sink = new FileAuditSink(new File(auditDir), auditMaxBytes, auditMaxFiles, auditSync);
+        }
+        System.out.println("Writing the audit log to " + sink + ".");
+        return new AuditLog(sink, auditCapacity, auditBatchSize, auditFlushMillis, auditBlock, auditBlockMillis);
+    }
+
+    /**
+     * Builds the username filter by streaming every username from the user store
+     * @return UsernameFilter
+     * @throws UserStoreException
+     */
+    private UsernameFilter buildUsernameFilter() throws UserStoreException {
+        UsernameFilter filter = new UsernameFilter(usernameFilterExpected, usernameFilterFpp);
+        userStore.forEachUsername(filter::add);
+        System.out.println(filter.stats());
+        return filter;
+    }
+
+    /**
+     * Takes a login permit from both the calling host's and the username's rate limiter, if enabled
+     * @param username String
+     * @return True/False False if the host or the username is over its login rate, True otherwise
+     */
+    private boolean acquireLoginPermit(String username) {
+        if (!loginRateLimitEnabled) {
+            return true;
+        }
+        return hostLoginLimiter.tryAcquire(clientHost()) && userLoginLimiter.tryAcquire(String.valueOf(username));
+    }
+
+    /**
+     * @return String The host of the RMI client making the current call, or "local" outside of a remote call
+     */
+    private static String clientHost() {
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            return "local";
+        }
+    }
+
+    /**
+     * Hands an event to the audit log, if enabled, stamped with the current time and the calling client's host
+     * @param type AuditEvent.Type
+     * @param outcome String
+     * @param username String
+     * @param detail String
+     */
+    private void audit(AuditEvent.Type type, String outcome, String username, String detail) {
+        if (auditLog != null) {
+            auditLog.log(new AuditEvent(System.currentTimeMillis(), type, outcome, username, clientHost(), detail));
+        }
+    }
+
+    /**
+     * @param e Exception
+     * @return String The exception and its causes on one line, the part of a stack trace worth keeping in the audit
+     * log
+     */
+    private static String describe(Exception e) {
+        StringBuilder out = new StringBuilder(e.toString());
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            out.append(" <- ").append(cause);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param path String A default file or directory path
+     * @return String The path with this server's replica ID appended to its name, e.g. "config-a.db" for replica
+     * "a", or the path itself when not running as a replica
+     */
+    private String replicaPath(String path) {
+        if (replicaId == null) {
+            return path;
+        }
+        int extension = path.lastIndexOf('.');
+        return extension < 0 ? path + "-" + replicaId
+                : path.substring(0, extension) + "-" + replicaId + path.substring(extension);
+    }
+
+    /**
+     * @param username String
+     * @return True/False False if the username is null or empty, so no user can have it
+     */
+    private static boolean isValidUsername(String username) {
+        return username != null && !username.isEmpty();
+    }
+
+    /**
+     * Checks the username filter, if enabled, for whether a user might be registered
+     * @param username String
+     * @return True/False False if the user is definitely not registered, True otherwise
+     */
+    private boolean mightBeRegistered(String username) {
+        return usernameFilter == null || usernameFilter.mightContain(username);
     }
 
     /**
      * Iterates through the printer queue and constructs a user-friendly list of files on the queue, ordered from top
-     * to bottom of the queue.
+     * to bottom of the queue and numbered by job ID.
      * @param topLine String The text to be printed before the list of files.
      * @return String
      */
     private String constructListOfFiles(String topLine){
-        String listOfFiles = topLine + "\n";
-        for (int i=1; i<=printQueue.size(); i++) {
-            listOfFiles += i + ". " + printQueue.get(i-1) + "\n";
+        StringBuilder listOfFiles = new StringBuilder(topLine.length() + 1 + printQueue.size() * 24);
+        listOfFiles.append(topLine).append('\n');
+        for (PrintJob job : printQueue) {
+            listOfFiles.append(job.getId()).append(". ").append(job.getFilename()).append('\n');
         }
 
-        return listOfFiles;
+        return listOfFiles.toString();
     }
 
     /**
@@ -325,68 +1250,164 @@ public class Server implements RemoteInterface {
      * @param pswdInput String
      * @param encryptedPswd byte[]
      * @param salt byte[]
+     * @param params HashParams The parameters the stored password was encrypted with
      * @return boolean
      * @throws NoSuchAlgorithmException
      * @throws InvalidKeySpecException
      */
-    private boolean authenticatePswd(String pswdInput, byte[] encryptedPswd, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException{
-        byte[] encryptedPswdInput = getEncryptedPswd(pswdInput, salt);
+    private boolean authenticatePswd(String pswdInput, byte[] encryptedPswd, byte[] salt, HashParams params)
+            throws NoSuchAlgorithmException, InvalidKeySpecException{
+        byte[] encryptedPswdInput = getEncryptedPswd(pswdInput, salt, params);
         return Arrays.equals(encryptedPswd, encryptedPswdInput);
     }
 
     /**
-     * Encrypts a string password into bytes
+     * Encrypts the password of a user who just logged in again with the current hash parameters. Failing to do so
+     * does not fail the login; the upgrade is retried on the next one.
+     * @param username String
+     * @param pswd String The password the user logged in with
+     */
+    private void rehash(String username, String pswd) {
+        try {
+            HashParams params = hashParams;
+            byte[] salt = PasswordHasher.generateSalt();
+            byte[] encryptedPswd = getEncryptedPswd(pswd, salt, params);
+            userStore.update(new UserRecord(username, encryptedPswd, salt, params));
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | UserStoreException
+                | RejectedExecutionException e) {
+            audit(AuditEvent.Type.LOGIN, "rehashError", username, describe(e));
+        }
+    }
+
+    /**
+     * Encrypts a string password into bytes on the hashing pool, so the RMI thread only waits for the result
      * @param pswd String
      * @param salt byte[]
+     * @param params HashParams
      * @return byte[]
      * @throws NoSuchAlgorithmException
      * @throws InvalidKeySpecException
+     * @throws RejectedExecutionException if the hashing pool is saturated
      */
-    private byte[] getEncryptedPswd(String pswd, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        String algorithm = "PBKDF2WithHmacSHA1";
-        int derivedKeyLength = 160;
-        int iterations = 10000;
-
-        KeySpec spec = new PBEKeySpec(pswd.toCharArray(), salt, iterations, derivedKeyLength);
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm);
-
-        return factory.generateSecret(spec).getEncoded();
+    private byte[] getEncryptedPswd(String pswd, byte[] salt, HashParams params)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return hashingExecutor.derive(() -> PasswordHasher.derive(pswd, salt, params));
     }
 
     /**
-     * Generates a random byte array
-     * @return byte[]
-     * @throws NoSuchAlgorithmException
+     * Checks if the provided session key belongs to a live session, refreshing its idle timer in store mode.
+     * @param sessionKey String
+     * @return True/False True if the session key is set and not expired, False otherwise
      */
-    private byte[] generateSalt() throws NoSuchAlgorithmException {
-        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+    private boolean verifyUserSessionAuthenticated(String sessionKey){
+        return sessions.touch(sessionKey);
+    }
 
-        byte[] salt = new byte[8];
-        random.nextBytes(salt);
+    /**
+     * Registers every user of a "username,password" CSV file, printing one result line per user
+     * @param path String
+     * @throws IOException
+     */
+    private void importUsers(String path) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        // nothing else runs while importing, so every hashing thread may be kept busy
+        BatchRegistrar importer = new BatchRegistrar(userStore, usernameFilter, batchChunkSize, hashingExecutor,
+                hashThreads, hashParams, lifecycle.readLock());
+        try (BufferedReader csv = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            long registered = importer.importCsv(csv, System.out::println);
+            System.out.println("Imported " + registered + " users in " + (System.currentTimeMillis() - startedAt)
+                    + "ms.");
+        } finally {
+            importer.shutdown();
+        }
+    }
 
-        return salt;
+    /**
+     * Stops the print server from within its own process, where there is no session to pass to stop()
+     */
+    private void shutdown() {
+        lifecycle.writeLock().lock();
+        try {
+            if (running) {
+                audit(AuditEvent.Type.LIFECYCLE, "stop", null, null);
+                shutdownState();
+            }
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
     }
 
     /**
-     * Checks if the provided session key is set in the sessions list.
-     * @param sessionKey String
-     * @return True/False True if the session key is set, False otherwise
+     * Exports this server with its call metrics and binds its stub in the registry, under its own name when running
+     * as one of many replicas ("auth.replica.id"). Calls travel over default RMI sockets unless "auth.rmi.tuned" is
+     * set, in which case they use the sockets of TunedSocketFactory, which the registry and clients then need on
+     * their class path.
+     * @param registry Registry
+     * @return ReplicaRegistration The binding, renewed until unregistered
+     * @throws Exception if the server cannot be exported or bound
      */
-    private boolean verifyUserSessionAuthenticated(String sessionKey){
-        return sessions.containsValue(sessionKey);
+    ReplicaRegistration export(Registry registry) throws Exception {
+        RemoteInterface instrumented = InstrumentedRemote.wrap(this, metrics);
+        RemoteInterface stub;
+        if (tunedSockets) {
+            TunedSocketFactory sockets = TunedSocketFactory.fromSystemProperties();
+            stub = (RemoteInterface) UnicastRemoteObject.exportObject(instrumented, 0, sockets, sockets);
+            System.out.println("Exporting over " + sockets);
+        } else {
+            stub = (RemoteInterface) UnicastRemoteObject.exportObject(instrumented, 0);
+        }
+        metrics.registerMBean();
+        metrics.startPeriodicDump(Long.getLong("auth.metrics.dumpSeconds", 0L));
+
+        ReplicaRegistration registration = new ReplicaRegistration(registry, replicaId, stub,
+                Long.getLong("auth.replica.leaseMillis", 15000L));
+        try {
+            registration.register();
+        } catch (Exception e) {
+            // nothing can reach it, and it would keep the JVM running
+            UnicastRemoteObject.unexportObject(instrumented, true);
+            throw e;
+        }
+        return registration;
     }
 
     public static void main(String args[]) {
+        // Bounds every call this JVM makes, above all printer event callbacks to clients that stopped answering.
+        // Only takes effect when set before the first remote call.
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout",
+                    String.valueOf(Long.getLong("auth.events.timeoutMillis", 10000L)));
+        }
+
+        if (args.length == 2 && "import".equals(args[0])) {
+            try {
+                Server obj = new Server();
+                System.out.println(obj.start());
+                if (!obj.running) {
+                    return;
+                }
+                try {
+                    obj.importUsers(args[1]);
+                } finally {
+                    // writes the queued audit events and releases the store, pools and executors
+                    obj.shutdown();
+                }
+            } catch (Exception e) {
+                System.err.println("Import exception: " + e.toString());
+                e.printStackTrace();
+            }
+            return;
+        }
 
         try {
             Server obj = new Server();
-            RemoteInterface stub = (RemoteInterface) UnicastRemoteObject.exportObject(obj, 0);
+            ReplicaRegistration registration = obj.export(LocateRegistry.getRegistry());
 
-            // Bind the remote object's stub in the registry
-            Registry registry = LocateRegistry.getRegistry();
-            registry.bind("RemoteInterface", stub);
+            if (Boolean.getBoolean("auth.autostart")) {
+                System.out.println(obj.start());
+            }
 
-            System.err.println("Server ready");
+            System.err.println("Server ready as \"" + registration.getName() + "\"");
         } catch (Exception e) {
             System.err.println("Server exception: " + e.toString());
             e.printStackTrace();
@@ -0,0 +1,257 @@
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Per-operation latency histograms and outcome counters plus named gauges, exposed as the JMX MBean
+ * "auth:type=ServerMetrics" and optionally dumped as text at a fixed interval.
+ *
+ * Every operation shows up as the attributes "<operation>.count", ".success", ".failure", ".notAuthenticated",
+ * ".p50Millis", ".p99Millis", ".p999Millis" and ".maxMillis"; every gauge as an attribute of its own name. Text
+ * reports too long for an attribute are MBean operations, next to "dump".
+ */
+public class ServerMetrics implements DynamicMBean {
+    public static final String OBJECT_NAME = "auth:type=ServerMetrics";
+
+    private final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, Supplier<Number>> gauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Supplier<String>> reports = new ConcurrentSkipListMap<>();
+    private ScheduledExecutorService dumper;
+
+    /**
+     * @param operation String
+     * @return Operation The metrics of the operation, created on first use
+     */
+    public Operation operation(String operation) {
+        return operations.computeIfAbsent(operation, name -> new Operation());
+    }
+
+    /**
+     * Registers a gauge, read each time the metrics are queried
+     * @param name String
+     * @param gauge Supplier<Number>
+     */
+    public void gauge(String name, Supplier<Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Registers a text report, built each time its MBean operation is invoked
+     * @param name String
+     * @param report Supplier<String>
+     */
+    public void report(String name, Supplier<String> report) {
+        reports.put(name, report);
+    }
+
+    /**
+     * Registers this object with the platform MBean server
+     * @throws Exception if the MBean cannot be registered
+     */
+    public void registerMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Prints dump() to standard output at a fixed interval
+     * @param intervalSeconds long
+     */
+    public synchronized void startPeriodicDump(long intervalSeconds) {
+        if (dumper != null || intervalSeconds <= 0) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> System.out.println(dump()), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return String One line per operation and one per gauge
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder("--- server metrics ---\n");
+        for (Map.Entry<String, Operation> entry : new TreeMap<>(operations).entrySet()) {
+            Operation op = entry.getValue();
+            out.append(String.format("%-16s ok=%d failed=%d notAuth=%d %s%n", entry.getKey(), op.success.sum(),
+                    op.failure.sum(), op.notAuthenticated.sum(), op.latency.summary()));
+        }
+        for (Map.Entry<String, Supplier<Number>> entry : gauges.entrySet()) {
+            out.append(String.format("%-16s %s%n", entry.getKey(), readGauge(entry.getValue())));
+        }
+        return out.toString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<Number> gauge = gauges.get(attribute);
+        if (gauge != null) {
+            return readGauge(gauge);
+        }
+
+        int dot = attribute.lastIndexOf('.');
+        Operation op = dot < 0 ? null : operations.get(attribute.substring(0, dot));
+        if (op == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        switch (attribute.substring(dot + 1)) {
+            case "count":
+                return op.latency.getCount();
+            case "success":
+                return op.success.sum();
+            case "failure":
+                return op.failure.sum();
+            case "notAuthenticated":
+                return op.notAuthenticated.sum();
+            case "p50Millis":
+                return op.latency.getPercentileNanos(50) / 1e6;
+            case "p99Millis":
+                return op.latency.getPercentileNanos(99) / 1e6;
+            case "p999Millis":
+                return op.latency.getPercentileNanos(99.9) / 1e6;
+            case "maxMillis":
+                return op.latency.getMaxNanos() / 1e6;
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // skipped, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Server metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("dump".equals(actionName)) {
+            return dump();
+        }
+        Supplier<String> report = reports.get(actionName);
+        if (report != null) {
+            return report.get();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : new TreeMap<>(operations).keySet()) {
+            for (String counter : new String[]{"count", "success", "failure", "notAuthenticated"}) {
+                attributes.add(new MBeanAttributeInfo(name + "." + counter, "java.lang.Long", counter + " of " + name,
+                        true, false, false));
+            }
+            for (String latency : new String[]{"p50Millis", "p99Millis", "p999Millis", "maxMillis"}) {
+                attributes.add(new MBeanAttributeInfo(name + "." + latency, "java.lang.Double", latency + " of " + name,
+                        true, false, false));
+            }
+        }
+        for (String name : gauges.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Number", name, true, false, false));
+        }
+        List<MBeanOperationInfo> operations = new ArrayList<>();
+        operations.add(new MBeanOperationInfo("dump", "Text dump of every metric", null, "java.lang.String",
+                MBeanOperationInfo.INFO));
+        for (String name : reports.keySet()) {
+            operations.add(new MBeanOperationInfo(name, name, null, "java.lang.String", MBeanOperationInfo.INFO));
+        }
+        return new MBeanInfo(getClass().getName(), "Print server latency and outcome metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, operations.toArray(new MBeanOperationInfo[0]),
+                null);
+    }
+
+    private static Number readGauge(Supplier<Number> gauge) {
+        try {
+            return gauge.get();
+        } catch (RuntimeException e) {
+            // a gauge reading server state while it is being stopped
+            return -1;
+        }
+    }
+
+    /**
+     * Latency and outcomes of one operation
+     */
+    public static final class Operation {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder success = new LongAdder();
+        private final LongAdder failure = new LongAdder();
+        private final LongAdder notAuthenticated = new LongAdder();
+
+        public void success(long nanos) {
+            latency.record(nanos);
+            success.increment();
+        }
+
+        public void failure(long nanos) {
+            latency.record(nanos);
+            failure.increment();
+        }
+
+        public void notAuthenticated(long nanos) {
+            latency.record(nanos);
+            notAuthenticated.increment();
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getSuccessCount() {
+            return success.sum();
+        }
+
+        public long getFailureCount() {
+            return failure.sum();
+        }
+
+        public long getNotAuthenticatedCount() {
+            return notAuthenticated.sum();
+        }
+    }
+}
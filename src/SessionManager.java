@@ -0,0 +1,30 @@
+/**
+ * Issues session keys to authenticated users and checks them on every authenticated call.
+ */
+public interface SessionManager {
+
+    /**
+     * Opens a new session for the user
+     * @param username String
+     * @return String The session key to hand to the client
+     */
+    String create(String username);
+
+    /**
+     * Checks that the session key belongs to a live session
+     * @param sessionKey String
+     * @return True/False True if the session is live, False otherwise
+     */
+    boolean touch(String sessionKey);
+
+    /**
+     * @param sessionKey String
+     * @return String The username owning the session, or null if the session is not live
+     */
+    String getUsername(String sessionKey);
+
+    /**
+     * Releases background resources and forgets every session this manager can forget
+     */
+    void shutdown();
+}
@@ -0,0 +1,178 @@
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe store of authenticated sessions, indexed by session key with a reverse index by username.
+ * Sessions expire after an idle timeout or an absolute lifetime, whichever comes first, and are evicted both lazily
+ * on lookup and by a background sweeper.
+ */
+public class SessionStore implements SessionManager {
+    private static final long DEFAULT_IDLE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final long DEFAULT_ABSOLUTE_TTL_MILLIS = TimeUnit.HOURS.toMillis(8);
+    private static final long DEFAULT_SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ConcurrentHashMap<String, Session> byKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> keyByUsername = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long idleTtlMillis;
+    private final long absoluteTtlMillis;
+    private final ScheduledExecutorService sweeper;
+
+    public SessionStore() {
+        this(DEFAULT_IDLE_TTL_MILLIS, DEFAULT_ABSOLUTE_TTL_MILLIS, DEFAULT_SWEEP_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param idleTtlMillis long How long a session may go unused before it expires
+     * @param absoluteTtlMillis long How long a session may live in total, regardless of activity
+     * @param sweepIntervalMillis long How often the background sweeper evicts expired sessions
+     */
+    public SessionStore(long idleTtlMillis, long absoluteTtlMillis, long sweepIntervalMillis) {
+        this.idleTtlMillis = idleTtlMillis;
+        this.absoluteTtlMillis = absoluteTtlMillis;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictExpired, sweepIntervalMillis, sweepIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a new session for the user, replacing any session the user already had.
+     * @param username String
+     * @return String The new session key
+     */
+    @Override
+    public String create(String username) {
+        String sessionKey = new BigInteger(130, random).toString(32);
+        long now = System.currentTimeMillis();
+        byKey.put(sessionKey, new Session(username, now));
+
+        String previousKey = keyByUsername.put(username, sessionKey);
+        if (previousKey != null) {
+            byKey.remove(previousKey);
+        }
+        return sessionKey;
+    }
+
+    /**
+     * Checks that the session key belongs to a live session and refreshes its idle timer.
+     * @param sessionKey String
+     * @return True/False True if the session is live, False otherwise
+     */
+    @Override
+    public boolean touch(String sessionKey) {
+        if (sessionKey == null) {
+            return false;
+        }
+        Session session = byKey.get(sessionKey);
+        if (session == null) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (session.isExpired(now)) {
+            remove(sessionKey, session);
+            return false;
+        }
+        session.lastAccess = now;
+        return true;
+    }
+
+    /**
+     * @param sessionKey String
+     * @return String The username owning the session, or null if there is no such session
+     */
+    @Override
+    public String getUsername(String sessionKey) {
+        Session session = sessionKey == null ? null : byKey.get(sessionKey);
+        return session == null ? null : session.username;
+    }
+
+    /**
+     * @param username String
+     * @return String The current session key of the user, or null if the user has no session
+     */
+    public String getSessionKey(String username) {
+        return keyByUsername.get(username);
+    }
+
+    /**
+     * Ends the session with the given key.
+     * @param sessionKey String
+     */
+    public void invalidate(String sessionKey) {
+        Session session = byKey.get(sessionKey);
+        if (session != null) {
+            remove(sessionKey, session);
+        }
+    }
+
+    /**
+     * @return int The number of sessions currently held, including expired ones not yet evicted
+     */
+    public int size() {
+        return byKey.size();
+    }
+
+    /**
+     * Drops every session.
+     */
+    public void clear() {
+        byKey.clear();
+        keyByUsername.clear();
+    }
+
+    /**
+     * Stops the background sweeper and drops every session.
+     */
+    @Override
+    public void shutdown() {
+        sweeper.shutdownNow();
+        clear();
+    }
+
+    /**
+     * Removes every expired session. Run periodically by the sweeper.
+     */
+    void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Session>> it = byKey.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Session> entry = it.next();
+            if (entry.getValue().isExpired(now)) {
+                remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void remove(String sessionKey, Session session) {
+        if (byKey.remove(sessionKey, session)) {
+            keyByUsername.remove(session.username, sessionKey);
+        }
+    }
+
+    private final class Session {
+        private final String username;
+        private final long createdAt;
+        private volatile long lastAccess;
+
+        private Session(String username, long createdAt) {
+            this.username = username;
+            this.createdAt = createdAt;
+            this.lastAccess = createdAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - lastAccess > idleTtlMillis || now - createdAt > absoluteTtlMillis;
+        }
+    }
+}
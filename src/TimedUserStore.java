@@ -0,0 +1,90 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * UserStore decorator recording the latency of every store call as the "db.*" operations of the server metrics.
+ */
+public class TimedUserStore implements UserStore {
+    private final UserStore delegate;
+    private final ServerMetrics.Operation find;
+    private final ServerMetrics.Operation insert;
+    private final ServerMetrics.Operation insertBatch;
+    private final ServerMetrics.Operation update;
+
+    public TimedUserStore(UserStore delegate, ServerMetrics metrics) {
+        this.delegate = delegate;
+        this.find = metrics.operation("db.find");
+        this.insert = metrics.operation("db.insert");
+        this.insertBatch = metrics.operation("db.insertBatch");
+        this.update = metrics.operation("db.update");
+    }
+
+    @Override
+    public UserRecord find(String username) throws UserStoreException {
+        long start = System.nanoTime();
+        try {
+            UserRecord record = delegate.find(username);
+            find.success(System.nanoTime() - start);
+            return record;
+        } catch (UserStoreException | RuntimeException e) {
+            find.failure(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean insert(UserRecord record) throws UserStoreException {
+        long start = System.nanoTime();
+        try {
+            boolean inserted = delegate.insert(record);
+            insert.success(System.nanoTime() - start);
+            return inserted;
+        } catch (UserStoreException | RuntimeException e) {
+            insert.failure(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean update(UserRecord record) throws UserStoreException {
+        long start = System.nanoTime();
+        try {
+            boolean updated = delegate.update(record);
+            update.success(System.nanoTime() - start);
+            return updated;
+        } catch (UserStoreException | RuntimeException e) {
+            update.failure(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean[] insertBatch(List<UserRecord> records) throws UserStoreException {
+        long start = System.nanoTime();
+        try {
+            boolean[] inserted = delegate.insertBatch(records);
+            insertBatch.success(System.nanoTime() - start);
+            return inserted;
+        } catch (UserStoreException | RuntimeException e) {
+            insertBatch.failure(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> consumer) throws UserStoreException {
+        delegate.forEachUsername(consumer);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * @return UserStore The undecorated store
+     */
+    public UserStore getDelegate() {
+        return delegate;
+    }
+}
@@ -0,0 +1,300 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stateless sessions: the session key is a self-contained token carrying the username, issue time and expiry, signed
+ * with HMAC-SHA256. Verifying a token is pure CPU with no lookup, so any server sharing the key ring can validate
+ * sessions issued by any other.
+ *
+ * Tokens have the form base64url(username).issuedAt.expiresAt.keyId.base64url(signature). Keys live in a ring:
+ * new tokens are signed with the newest key, older keys still verify until they drop off the ring, and removing a key
+ * revokes every token it signed. When a key ring file is configured the ring is shared through it: the rotating
+ * server writes it, the others reload it periodically.
+ */
+public class TokenSessionManager implements SessionManager {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_BYTES = 32;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final File keyRingFile;
+    private final long ttlMillis;
+    private final int maxKeys;
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService scheduler;
+    private final ThreadLocal<CachedMac> macs = ThreadLocal.withInitial(CachedMac::new);
+
+    /** Immutable snapshot of the ring, replaced wholesale on rotation, revocation and reload */
+    private volatile KeyRing ring;
+
+    /**
+     * @param keyRingFile File File the key ring is shared through, or null to keep it in memory only
+     * @param ttlMillis long Lifetime of an issued token
+     * @param maxKeys int Number of keys kept on the ring; tokens signed by older keys stop verifying
+     * @param rotateIntervalMillis long How often this server rotates in a new key, or 0 to never rotate
+     * @param reloadIntervalMillis long How often the key ring file is reloaded, or 0 to never reload
+     * @throws IOException if the key ring file exists but cannot be read
+     */
+    public TokenSessionManager(File keyRingFile, long ttlMillis, int maxKeys, long rotateIntervalMillis,
+                               long reloadIntervalMillis) throws IOException {
+        this.keyRingFile = keyRingFile;
+        this.ttlMillis = ttlMillis;
+        this.maxKeys = maxKeys;
+
+        if (keyRingFile != null && keyRingFile.exists()) {
+            ring = KeyRing.load(keyRingFile);
+        }
+        if (ring == null || ring.keys.isEmpty()) {
+            ring = new KeyRing(new TreeMap<>());
+            rotate();
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-key-ring");
+            t.setDaemon(true);
+            return t;
+        });
+        if (rotateIntervalMillis > 0) {
+            scheduler.scheduleAtFixedRate(this::rotateQuietly, rotateIntervalMillis, rotateIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (keyRingFile != null && reloadIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::reloadQuietly, reloadIntervalMillis, reloadIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public String create(String username) {
+        KeyRing current = ring;
+        int keyId = current.newestKeyId();
+        long issuedAt = System.currentTimeMillis();
+        String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8)) + "." + issuedAt + "."
+                + (issuedAt + ttlMillis) + "." + keyId;
+        return payload + "." + ENCODER.encodeToString(sign(keyId, current.keys.get(keyId), payload));
+    }
+
+    @Override
+    public boolean touch(String sessionKey) {
+        return verify(sessionKey) != null;
+    }
+
+    @Override
+    public String getUsername(String sessionKey) {
+        return verify(sessionKey);
+    }
+
+    @Override
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Checks the signature and expiry of a token
+     * @param token String
+     * @return String The username the token was issued to, or null if the token is invalid, expired or revoked
+     */
+    public String verify(String token) {
+        if (token == null) {
+            return null;
+        }
+        int signatureStart = token.lastIndexOf('.');
+        if (signatureStart < 0) {
+            return null;
+        }
+        String payload = token.substring(0, signatureStart);
+        String[] fields = payload.split("\\.");
+        if (fields.length != 4) {
+            return null;
+        }
+
+        try {
+            long expiresAt = Long.parseLong(fields[2]);
+            if (System.currentTimeMillis() > expiresAt) {
+                return null;
+            }
+            int keyId = Integer.parseInt(fields[3]);
+            byte[] key = ring.keys.get(keyId);
+            if (key == null) {
+                return null;
+            }
+
+            byte[] expected = sign(keyId, key, payload);
+            byte[] actual = DECODER.decode(token.substring(signatureStart + 1));
+            if (!MessageDigest.isEqual(expected, actual)) {
+                return null;
+            }
+            return new String(DECODER.decode(fields[0]), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // malformed number or base64
+            return null;
+        }
+    }
+
+    /**
+     * Adds a fresh signing key to the ring, dropping the oldest keys beyond the ring size, and saves the ring if it
+     * is shared through a file
+     * @throws IOException if the key ring file cannot be written
+     */
+    public synchronized void rotate() throws IOException {
+        TreeMap<Integer, byte[]> keys = new TreeMap<>(ring.keys);
+        byte[] key = new byte[KEY_BYTES];
+        random.nextBytes(key);
+        keys.put(keys.isEmpty() ? 1 : keys.lastKey() + 1, key);
+        while (keys.size() > maxKeys) {
+            keys.pollFirstEntry();
+        }
+        replace(new KeyRing(keys));
+    }
+
+    /**
+     * Removes a key from the ring, revoking every token it signed. The newest key cannot be revoked; rotate first.
+     * @param keyId int
+     * @throws IOException if the key ring file cannot be written
+     */
+    public synchronized void revoke(int keyId) throws IOException {
+        if (keyId == ring.newestKeyId()) {
+            throw new IllegalStateException("Cannot revoke the signing key " + keyId + ", rotate first");
+        }
+        TreeMap<Integer, byte[]> keys = new TreeMap<>(ring.keys);
+        if (keys.remove(keyId) != null) {
+            replace(new KeyRing(keys));
+        }
+    }
+
+    /**
+     * @return List<Integer> The IDs of the keys on the ring, oldest first
+     */
+    public List<Integer> getKeyIds() {
+        return Collections.unmodifiableList(new ArrayList<>(ring.keys.keySet()));
+    }
+
+    private void replace(KeyRing newRing) throws IOException {
+        if (keyRingFile != null) {
+            newRing.save(keyRingFile);
+        }
+        ring = newRing;
+    }
+
+    private void rotateQuietly() {
+        try {
+            rotate();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not rotate the session key ring, keeping the current keys: " + e);
+        }
+    }
+
+    private void reloadQuietly() {
+        try {
+            KeyRing loaded = KeyRing.load(keyRingFile);
+            if (loaded != null && !loaded.keys.isEmpty()) {
+                ring = loaded;
+            }
+        } catch (IOException | RuntimeException e) {
+            // an exception escaping a scheduled task would cancel every later reload
+            System.out.println("Could not reload the session key ring, keeping the current keys: " + e);
+        }
+    }
+
+    private byte[] sign(int keyId, byte[] key, String payload) {
+        return macs.get().forKey(keyId, key).doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Per-thread Mac, re-keyed only when a thread switches to a different signing key
+     */
+    private static final class CachedMac {
+        private final Mac mac;
+        private byte[] key;
+
+        private CachedMac() {
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+        }
+
+        private Mac forKey(int keyId, byte[] newKey) {
+            if (key != newKey) {
+                try {
+                    mac.init(new SecretKeySpec(newKey, ALGORITHM));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Invalid session signing key " + keyId, e);
+                }
+                key = newKey;
+            }
+            return mac;
+        }
+    }
+
+    /**
+     * Key ID -> key. Saved as one "keyId base64(key)" line per key.
+     */
+    private static final class KeyRing {
+        private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+        private final TreeMap<Integer, byte[]> keys;
+
+        private KeyRing(TreeMap<Integer, byte[]> keys) {
+            this.keys = keys;
+        }
+
+        private int newestKeyId() {
+            return keys.lastKey();
+        }
+
+        private static KeyRing load(File file) throws IOException {
+            TreeMap<Integer, byte[]> keys = new TreeMap<>();
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2) {
+                    keys.put(Integer.parseInt(parts[0]), Base64.getDecoder().decode(parts[1]));
+                }
+            }
+            return new KeyRing(keys);
+        }
+
+        private void save(File file) throws IOException {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<Integer, byte[]> entry : keys.entrySet()) {
+                out.append(entry.getKey()).append(' ')
+                        .append(Base64.getEncoder().encodeToString(entry.getValue())).append('\n');
+            }
+            // the keys can sign sessions for any user, so only the owner may read them; the file is created with
+            // those permissions before anything is written to it
+            Path tmp = Paths.get(file.getPath() + ".tmp");
+            Files.deleteIfExists(tmp);
+            if (tmp.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(tmp, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } else {
+                Files.createFile(tmp);
+            }
+            Files.write(tmp, out.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,510 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * RMI socket factory for both ends of a connection: the server exports with it, and RMI ships it to clients inside
+ * the stub, so clients connect with the same settings. Every connection gets ConnectionStats.
+ *
+ * Sockets get explicit send and receive buffers, set before connecting so the TCP window can scale to them, and
+ * TCP_NODELAY and keep-alive as configured; these win over the values RMI sets on its own. Optionally the stream is
+ * deflate-compressed, flushed at every RMI message boundary, which pays off for large queue listings on slow links
+ * and costs CPU on fast ones. Optionally it runs over TLS with the JVM's default SSLContext, configured by the
+ * standard javax.net.ssl.keyStore and trustStore properties; as every connection of a JVM shares that context and
+ * its session cache, reconnecting to a server resumes the earlier TLS session instead of running a full handshake.
+ * Clients check that the server's certificate was issued for the host they connect to, as HTTPS does.
+ */
+public class TunedSocketFactory implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int COMPRESSION_BUFFER_BYTES = 8192;
+
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final int bufferBytes;
+    private final boolean compress;
+    private final boolean tls;
+
+    /**
+     * @param tcpNoDelay boolean Whether small writes go out without waiting for more data
+     * @param keepAlive boolean Whether idle connections are probed so dead peers are noticed
+     * @param bufferBytes int Socket send and receive buffer size, or 0 for the system default
+     * @param compress boolean Whether the stream is deflate-compressed
+     * @param tls boolean Whether connections use TLS
+     */
+    public TunedSocketFactory(boolean tcpNoDelay, boolean keepAlive, int bufferBytes, boolean compress, boolean tls) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.bufferBytes = bufferBytes;
+        this.compress = compress;
+        this.tls = tls;
+    }
+
+    /**
+     * @return TunedSocketFactory Configured by "auth.rmi.tcpNoDelay" and "auth.rmi.keepAlive" (both on by default),
+     * "auth.rmi.bufferBytes" (256KB), "auth.rmi.compress" and "auth.rmi.tls" (both off)
+     */
+    public static TunedSocketFactory fromSystemProperties() {
+        return new TunedSocketFactory(Boolean.parseBoolean(System.getProperty("auth.rmi.tcpNoDelay", "true")),
+                Boolean.parseBoolean(System.getProperty("auth.rmi.keepAlive", "true")),
+                Integer.getInteger("auth.rmi.bufferBytes", 256 * 1024), Boolean.getBoolean("auth.rmi.compress"),
+                Boolean.getBoolean("auth.rmi.tls"));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        Socket socket = tls ? tlsContext().getSocketFactory().createSocket() : new Socket();
+        ConnectionStats stats = null;
+        try {
+            configure(socket);
+            if (tls) {
+                SSLSocket ssl = (SSLSocket) socket;
+                SSLParameters parameters = ssl.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                ssl.setSSLParameters(parameters);
+            }
+            socket.connect(new InetSocketAddress(host, port));
+            stats = ConnectionStats.open(false, host + ":" + port);
+            if (tls) {
+                SSLSocket ssl = (SSLSocket) socket;
+                ssl.startHandshake();
+                SSLSession session = ssl.getSession();
+                stats.handshake(session.getProtocol(), session.getCreationTime() < startMillis);
+            }
+            stats.connected(System.nanoTime() - start);
+            return new TunedSocket(socket, stats);
+        } catch (IOException | RuntimeException e) {
+            if (stats != null) {
+                stats.closed();
+            }
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket server = tls ? tlsContext().getServerSocketFactory().createServerSocket() : new ServerSocket();
+        try {
+            if (bufferBytes > 0) {
+                // inherited by accepted sockets, and only effective for windows over 64KB if set before binding
+                server.setReceiveBufferSize(bufferBytes);
+            }
+            server.bind(new InetSocketAddress(port));
+            return new TunedServerSocket(server);
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    private void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        if (bufferBytes > 0) {
+            socket.setSendBufferSize(bufferBytes);
+            socket.setReceiveBufferSize(bufferBytes);
+        }
+    }
+
+    private static SSLContext tlsContext() throws IOException {
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available", e);
+        }
+    }
+
+    /**
+     * RMI reuses connections only between equal factories
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        TunedSocketFactory other = (TunedSocketFactory) o;
+        return tcpNoDelay == other.tcpNoDelay && keepAlive == other.keepAlive && bufferBytes == other.bufferBytes
+                && compress == other.compress && tls == other.tls;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tcpNoDelay, keepAlive, bufferBytes, compress, tls);
+    }
+
+    @Override
+    public String toString() {
+        return "TunedSocketFactory[tcpNoDelay=" + tcpNoDelay + ", keepAlive=" + keepAlive + ", bufferBytes="
+                + bufferBytes + ", compress=" + compress + ", tls=" + tls + "]";
+    }
+
+    /**
+     * Server socket handing out tuned, counted sockets. ServerSocket has no interface, so this subclass forwards to
+     * the socket that was actually bound, which may be an SSLServerSocket.
+     */
+    private final class TunedServerSocket extends ServerSocket {
+        private final ServerSocket delegate;
+
+        TunedServerSocket(ServerSocket delegate) throws IOException {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            Socket socket = delegate.accept();
+            try {
+                configure(socket);
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+            ConnectionStats stats = ConnectionStats.open(true, String.valueOf(socket.getRemoteSocketAddress()));
+            if (socket instanceof SSLSocket) {
+                // the server side of the handshake runs on the first read
+                long acceptedAt = System.nanoTime();
+                long acceptedAtMillis = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(event -> {
+                    stats.handshake(event.getSession().getProtocol(),
+                            event.getSession().getCreationTime() < acceptedAtMillis);
+                    stats.connected(System.nanoTime() - acceptedAt);
+                });
+            }
+            return new TunedSocket(socket, stats);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return delegate.isClosed();
+        }
+
+        @Override
+        public boolean isBound() {
+            return delegate.isBound();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return delegate.getLocalPort();
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return delegate.getInetAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return delegate.getLocalSocketAddress();
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) throws SocketException {
+            delegate.setSoTimeout(timeout);
+        }
+
+        @Override
+        public synchronized int getSoTimeout() throws IOException {
+            return delegate.getSoTimeout();
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    /**
+     * Socket whose streams count bytes, and compress them if configured. Socket has no interface either, so this
+     * subclass forwards to the connected socket.
+     */
+    private final class TunedSocket extends Socket {
+        private final Socket delegate;
+        private final ConnectionStats stats;
+        private InputStream in;
+        private OutputStream out;
+        private Inflater inflater;
+        private Deflater deflater;
+        private boolean closed;
+
+        TunedSocket(Socket delegate, ConnectionStats stats) {
+            this.delegate = delegate;
+            this.stats = stats;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                InputStream raw = delegate.getInputStream();
+                if (compress) {
+                    inflater = new Inflater();
+                    in = new CountingInputStream(new InflaterInputStream(new CountingInputStream(raw, stats, false,
+                            true), inflater, COMPRESSION_BUFFER_BYTES), stats, true, false);
+                } else {
+                    in = new CountingInputStream(raw, stats, true, true);
+                }
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                OutputStream raw = delegate.getOutputStream();
+                if (compress) {
+                    // a sync flush at every flush() hands each RMI message to the peer whole
+                    deflater = new Deflater();
+                    out = new CountingOutputStream(new DeflaterOutputStream(new CountingOutputStream(raw, stats, false,
+                            true), deflater, COMPRESSION_BUFFER_BYTES, true), stats, true, false);
+                } else {
+                    out = new CountingOutputStream(raw, stats, true, true);
+                }
+            }
+            return out;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            stats.closed();
+            try {
+                delegate.close();
+            } finally {
+                // frees the native memory of a compressed connection
+                if (inflater != null) {
+                    inflater.end();
+                }
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+
+        @Override
+        public synchronized boolean isClosed() {
+            return closed || delegate.isClosed();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return delegate.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return delegate.isBound();
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return delegate.getInetAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return delegate.getPort();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return delegate.getLocalAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return delegate.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return delegate.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return delegate.getLocalSocketAddress();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            // keeps the configured value
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return delegate.getTcpNoDelay();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) {
+            // keeps the configured value
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return delegate.getKeepAlive();
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) throws SocketException {
+            delegate.setSoTimeout(timeout);
+        }
+
+        @Override
+        public synchronized int getSoTimeout() throws SocketException {
+            return delegate.getSoTimeout();
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+            delegate.setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return delegate.getSoLinger();
+        }
+
+        @Override
+        public synchronized int getSendBufferSize() throws SocketException {
+            return delegate.getSendBufferSize();
+        }
+
+        @Override
+        public synchronized int getReceiveBufferSize() throws SocketException {
+            return delegate.getReceiveBufferSize();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            delegate.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            delegate.shutdownOutput();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return delegate.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return delegate.isOutputShutdown();
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final ConnectionStats stats;
+        private final boolean payload;
+        private final boolean wire;
+
+        CountingInputStream(InputStream in, ConnectionStats stats, boolean payload, boolean wire) {
+            super(in);
+            this.stats = stats;
+            this.payload = payload;
+            this.wire = wire;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int bytes) {
+            if (wire) {
+                stats.wireRead(bytes);
+            }
+            if (payload) {
+                stats.read(bytes);
+            }
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final ConnectionStats stats;
+        private final boolean payload;
+        private final boolean wire;
+
+        CountingOutputStream(OutputStream out, ConnectionStats stats, boolean payload, boolean wire) {
+            super(out);
+            this.stats = stats;
+            this.payload = payload;
+            this.wire = wire;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count(len);
+            out.write(b, off, len);
+        }
+
+        private void count(int bytes) {
+            if (wire) {
+                stats.wireWritten(bytes);
+            }
+            if (payload) {
+                stats.written(bytes);
+            }
+        }
+    }
+}
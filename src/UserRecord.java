@@ -0,0 +1,32 @@
+/**
+ * A registered user together with the encrypted password and the salt and parameters used to encrypt it.
+ */
+public class UserRecord {
+    private final String username;
+    private final byte[] password;
+    private final byte[] salt;
+    private final HashParams hashParams;
+
+    public UserRecord(String username, byte[] password, byte[] salt, HashParams hashParams) {
+        this.username = username;
+        this.password = password;
+        this.salt = salt;
+        this.hashParams = hashParams;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public byte[] getPassword() {
+        return password;
+    }
+
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    public HashParams getHashParams() {
+        return hashParams;
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Storage of registered users and their password hashes.
+ */
+public interface UserStore {
+
+    /**
+     * Looks up a user by username
+     * @param username String
+     * @return UserRecord The stored record, or null if there is no such user
+     * @throws UserStoreException
+     */
+    UserRecord find(String username) throws UserStoreException;
+
+    /**
+     * Stores a new user, unless a user with the same username already exists
+     * @param record UserRecord
+     * @return boolean True if the user was stored, False if the username is already taken
+     * @throws UserStoreException
+     */
+    boolean insert(UserRecord record) throws UserStoreException;
+
+    /**
+     * Replaces the password hash, salt and hash parameters of an existing user
+     * @param record UserRecord
+     * @return boolean True if the user was updated, False if there is no such user
+     * @throws UserStoreException
+     */
+    boolean update(UserRecord record) throws UserStoreException;
+
+    /**
+     * Stores several new users at once, skipping those whose username is already taken. Backends that can write
+     * in bulk override this; the default stores the users one by one.
+     * @param records List<UserRecord> Records with distinct usernames
+     * @return boolean[] For each record, True if it was stored, False if the username is already taken
+     * @throws UserStoreException
+     */
+    default boolean[] insertBatch(List<UserRecord> records) throws UserStoreException {
+        boolean[] inserted = new boolean[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            inserted[i] = insert(records.get(i));
+        }
+        return inserted;
+    }
+
+    /**
+     * Streams the username of every stored user to the consumer, without loading all of them in memory at once
+     * @param consumer Consumer<String>
+     * @throws UserStoreException
+     */
+    void forEachUsername(Consumer<String> consumer) throws UserStoreException;
+
+    /**
+     * Releases every resource held by the store
+     */
+    void close();
+}
@@ -0,0 +1,14 @@
+/**
+ * Thrown when a UserStore backend fails to read or write user records.
+ */
+public class UserStoreException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public UserStoreException(String message) {
+        super(message);
+    }
+
+    public UserStoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,125 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter of registered usernames. A miss means the username is definitely not registered, so
+ * unknown-user logins can be answered without querying the user store. A hit only means the user probably exists.
+ *
+ * The filter only knows about users it has been told about, so it must be filled from the user store on start and
+ * updated on every successful registration.
+ */
+public class UsernameFilter {
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final AtomicLong insertions = new AtomicLong();
+
+    /**
+     * Sizes the filter so that it holds the expected number of usernames at the given false-positive rate
+     * @param expectedInsertions long
+     * @param falsePositiveRate double
+     */
+    public UsernameFilter(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid filter size: expected=" + expectedInsertions
+                    + ", falsePositiveRate=" + falsePositiveRate);
+        }
+        long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, (optimalBits + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * Records a username as registered
+     * @param username String
+     */
+    public void add(String username) {
+        long hash = hash64(username);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            setBit(index(h1 + i * h2));
+        }
+        insertions.incrementAndGet();
+    }
+
+    /**
+     * @param username String
+     * @return boolean False if the username is definitely not registered, True if it might be
+     */
+    public boolean mightContain(String username) {
+        long hash = hash64(username);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = index(h1 + i * h2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return long Number of usernames added so far
+     */
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    /**
+     * @return long Memory taken by the bit array, in bytes
+     */
+    public long getMemoryBytes() {
+        return bitCount / 8;
+    }
+
+    /**
+     * @return double Expected false-positive rate for the number of usernames added so far
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-hashCount * (double) insertions.get() / bitCount), hashCount);
+    }
+
+    /**
+     * @return String One-line summary of the filter footprint and accuracy
+     */
+    public String stats() {
+        return String.format("usernameFilter[users=%d, bits=%d, hashes=%d, memory=%dKB, expectedFpp=%.5f]",
+                insertions.get(), bitCount, hashCount, getMemoryBytes() / 1024, getExpectedFalsePositiveRate());
+    }
+
+    private long index(int combinedHash) {
+        return (combinedHash & 0x7fffffffL) % bitCount;
+    }
+
+    private void setBit(long bit) {
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        long current;
+        while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+            // retry until the bit is set by us or by a concurrent add
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes of the username, finished with the MurmurHash3 mixer so both halves are
+     * usable as independent hashes.
+     */
+    private static long hash64(String username) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}